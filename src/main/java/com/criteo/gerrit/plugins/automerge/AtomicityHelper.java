@@ -39,12 +39,15 @@ import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.restapi.change.GetRelated;
 import com.google.gerrit.server.restapi.change.Submit;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+@Singleton
 public class AtomicityHelper {
 
   private static final Logger log = LoggerFactory.getLogger(AtomicityHelper.class);
@@ -67,21 +70,30 @@ public class AtomicityHelper {
 
   @Inject ChangeResource.Factory changeResourceFactory;
 
+  @Inject SubmittabilityCache submittabilityCache;
+
+  @Inject AutomergeState state;
+
+  /** The account of the bot user, looked up once found. */
+  private volatile Account.Id botAccountId;
+
   /**
    * Check if the current patchset of the specified change has dependent unmerged changes.
    *
    * @param project
    * @param number
+   * @param trace the trace of the running evaluation
    * @return true or false
    * @throws IOException
    * @throws NoSuchChangeException
    * @throws NoSuchProjectException
    * @throws PermissionBackendException
    */
-  public boolean hasDependentReview(String project, int number) throws Exception {
+  public boolean hasDependentReview(String project, int number, EvaluationTrace trace)
+      throws Exception {
     RevisionResource r = getRevisionResource(project, number);
     RelatedChangesInfo related = getRelated.apply(r).value();
-    log.debug(String.format("Checking for related changes on review %d", number));
+    log.debug("Checking for related changes on review {}", number);
 
     String checkedCommitSha1 = r.getPatchSet().commitId().name();
     int firstParentIndex = 0;
@@ -90,9 +102,10 @@ public class AtomicityHelper {
       if (checkedCommitSha1.equals(c.commit.commit)) {
         firstParentIndex = i + 1;
         log.debug(
-            String.format(
-                "First parent index on review %d is %d on commit %s",
-                number, firstParentIndex, c.commit.commit));
+            "First parent index on review {} is {} on commit {}",
+            number,
+            firstParentIndex,
+            c.commit.commit);
         break;
       }
       i++;
@@ -102,61 +115,81 @@ public class AtomicityHelper {
     for (RelatedChangeAndCommitInfo c :
         related.changes.subList(firstParentIndex, related.changes.size())) {
       if (!ChangeStatus.MERGED.toString().equals(c.status)) {
-        log.info(
-            String.format(
-                "Found non merged parent commit on review %d: %s", number, c.commit.commit));
+        log.info("Found non merged parent commit on review {}: {}", number, c.commit.commit);
         hasNonMergedParent = true;
         break;
       }
     }
 
+    trace.record("dependsOnNonMerged", number, hasNonMergedParent);
     return hasNonMergedParent;
   }
 
   /**
-   * Check if a change is an atomic change or not. A change is atomic if it has the atomic topic
-   * prefix.
+   * Check if a change is an atomic change or not. A change is atomic if its topic starts with one
+   * of the atomic topic prefixes.
    *
    * @param change a Change instance
    * @return true or false
    */
   public boolean isAtomicReview(final Change change) {
-    final boolean atomic = change.topic != null && change.topic.startsWith(config.getTopicPrefix());
-    log.debug(
-        String.format("Checking if change %s is an atomic change: %b", change.number, atomic));
-    return atomic;
+    return config.isAtomicTopic(change.topic);
   }
 
   /**
-   * Check if a change is submitable.
+   * Check if a change is submitable. The verdict is cached for the current state of the change.
    *
    * @param project a change project
    * @param change a change number
+   * @param trace the trace of the running evaluation
    * @return true or false
    */
-  public boolean isSubmittable(String project, int change) {
+  public boolean isSubmittable(String project, int change, EvaluationTrace trace) {
     ChangeData changeData =
         changeDataFactory.create(
             Project.nameKey(project), com.google.gerrit.entities.Change.id(change));
+    try {
+      boolean submittable =
+          submittabilityCache.get(changeData, () -> evaluateSubmitRequirements(changeData));
+      trace.record("submittable", change, submittable);
+      return submittable;
+    } catch (ExecutionException e) {
+      throw new StorageException(
+          String.format("Cannot evaluate submit requirements of change %d", change), e.getCause());
+    }
+  }
 
+  private boolean evaluateSubmitRequirements(ChangeData changeData) {
+    int change = changeData.getId().get();
+    boolean debug = log.isDebugEnabled();
     for (Map.Entry<SubmitRequirement, SubmitRequirementResult> req :
         changeData.submitRequirementsIncludingLegacy().entrySet()) {
-      log.debug(String.format("Checking if change %d is satisfy %s submit requirement.", change, req.getKey().name()));
-      if (!req.getValue().fulfilled()) {
+      if (debug) {
         log.debug(
-            String.format(
-                "Change %d is not submitable: requirement %s is not fulfilled",
-                change, req.getKey().name()));
+            "Checking if change {} satisfies {} submit requirement.", change, req.getKey().name());
+      }
+      if (!req.getValue().fulfilled()) {
+        if (debug) {
+          log.debug(
+              "Change {} is not submitable: requirement {} is not fulfilled",
+              change,
+              req.getKey().name());
+        }
         return false;
       }
     }
-    log.debug(String.format("Change %d is submitable", change));
+    log.debug("Change {} is submitable", change);
     return true;
   }
 
   /** Merge a review. */
   public void mergeReview(String project, int number) throws Exception {
-    submitter.apply(getRevisionResource(project, number), new SubmitInput());
+    state.submitStarted(number);
+    try {
+      submitter.apply(getRevisionResource(project, number), new SubmitInput());
+    } finally {
+      state.submitFinished(number);
+    }
   }
 
   public RevisionResource getRevisionResource(String project, int changeNumber) {
@@ -177,15 +210,25 @@ public class AtomicityHelper {
     }
   }
 
-  private IdentifiedUser getBotUser() {
-    try {
-      Set<Account.Id> ids = emails.getAccountFor(config.getBotEmail());
-      if (ids.isEmpty()) {
-        throw new RuntimeException("No user found with email: " + config.getBotEmail());
+  /** Returns the account of the bot user, in whose name the plugin acts. */
+  public Account.Id getBotAccountId() {
+    Account.Id id = botAccountId;
+    if (id == null) {
+      try {
+        Set<Account.Id> ids = emails.getAccountFor(config.getBotEmail());
+        if (ids.isEmpty()) {
+          throw new RuntimeException("No user found with email: " + config.getBotEmail());
+        }
+        id = ids.iterator().next();
+      } catch (IOException | StorageException e) {
+        throw new RuntimeException("Unable to get account with email: " + config.getBotEmail(), e);
       }
-      return factory.create(ids.iterator().next());
-    } catch (IOException | StorageException e) {
-      throw new RuntimeException("Unable to get account with email: " + config.getBotEmail(), e);
+      botAccountId = id;
     }
+    return id;
+  }
+
+  private IdentifiedUser getBotUser() {
+    return factory.create(getBotAccountId());
   }
 }
@@ -16,6 +16,7 @@
 package com.criteo.gerrit.plugins.automerge;
 
 import com.google.common.collect.Lists;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.api.GerritApi;
 import com.google.gerrit.extensions.api.changes.ChangeApi;
 import com.google.gerrit.extensions.client.ListChangesOption;
@@ -23,15 +24,17 @@ import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.server.data.AccountAttribute;
-import com.google.gerrit.server.data.ChangeAttribute;
 import com.google.gerrit.server.events.ChangeEvent;
 import com.google.gerrit.server.events.CommentAddedEvent;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventListener;
 import com.google.gerrit.server.events.PatchSetCreatedEvent;
+import com.google.gerrit.server.events.PatchSetEvent;
+import com.google.gerrit.server.events.PrivateStateChangedEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.events.ReviewerDeletedEvent;
 import com.google.gerrit.server.events.TopicChangedEvent;
+import com.google.gerrit.server.events.WorkInProgressStateChangedEvent;
 import com.google.gerrit.server.git.MergeUtilFactory;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.restapi.change.GetRelated;
@@ -39,12 +42,16 @@ import com.google.gerrit.server.restapi.change.PostReview;
 import com.google.gerrit.server.restapi.change.Submit;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /** Starts at the same time as the gerrit server, and sets up our change hook listener. */
+@Singleton
 public class AutomaticMerger implements EventListener, LifecycleListener {
 
   private static final Logger log = LoggerFactory.getLogger(AutomaticMerger.class);
@@ -67,16 +74,97 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
 
   @Inject Submit submitter;
 
+  @Inject private AutomergeState state;
+
+  @Inject private Reconciler reconciler;
+
+  @Inject private BranchLeases leases;
+
+  @Inject private QueryBatcher queryBatcher;
+
+  @Inject private AutomergeExecutor executor;
+
+  /**
+   * Serializes the processing of events in {@code DIRECT} mode, and only the submit decisions in
+   * {@code VIRTUAL} mode, so that the lookups of concurrent evaluations can be batched. Not a
+   * monitor, as virtual threads would stay pinned to their carrier thread while blocked in it.
+   */
+  private final ReentrantLock submitLock = new ReentrantLock();
+
   @Override
-  public synchronized void onEvent(final Event event) {
-    if (event instanceof TopicChangedEvent
-        || event instanceof ReviewerDeletedEvent
-        || // A blocking score might be removed when a reviewer is deleted.
-        event instanceof PatchSetCreatedEvent) {
-      Change change = Change.from(((ChangeEvent) event).change.get());
+  public void onEvent(final Event event) {
+    Change change = null;
+    String branchKey;
+    if (event instanceof RefUpdatedEvent) {
+      RefUpdatedEvent refUpdated = (RefUpdatedEvent) event;
+      if (!refUpdated.getRefName().startsWith(RefNames.REFS_HEADS)) {
+        // No change can be submitted to other refs, e.g. change meta refs.
+        return;
+      }
+      String project = refUpdated.getProjectNameKey().get();
+      if (!config.isHandled(project, refUpdated.getRefName())) {
+        return;
+      }
+      branchKey =
+          AutomergeState.branchKey(project, Repository.shortenRefName(refUpdated.getRefName()));
+    } else if (isChangeEventToProcess(event)) {
+      ChangeEvent changeEvent = (ChangeEvent) event;
+      // Checked before building the payload of the event, which is computed lazily.
+      if (changeEvent.getRefName() != null
+          && !config.isHandled(changeEvent.getProjectNameKey().get(), changeEvent.getRefName())) {
+        return;
+      }
+      change = changeOf(changeEvent);
+      if (!config.isHandled(change.project, change.branch) || !shouldEvaluate(change)) {
+        return;
+      }
+      branchKey = AutomergeState.branchKey(change.project, change.branch);
+    } else {
+      return;
+    }
+
+    state.workStarted(branchKey);
+    Change eventChange = change;
+    boolean scheduled =
+        executor.evaluate(
+            () -> {
+              try {
+                serialized(() -> processEvent(event, eventChange));
+              } finally {
+                state.workFinished(branchKey);
+              }
+            });
+    if (!scheduled) {
+      state.workFinished(branchKey);
+    }
+  }
+
+  /**
+   * Runs the processing of an event, or of a change found by the reconciler. Unless evaluations run
+   * concurrently on purpose, i.e. in {@code VIRTUAL} mode, it is serialized as a whole.
+   */
+  private void serialized(Runnable processing) {
+    boolean whole = !executor.isVirtual();
+    if (whole) {
+      submitLock.lock();
+    }
+    try {
+      processing.run();
+    } finally {
+      if (whole) {
+        submitLock.unlock();
+      }
+    }
+  }
+
+  private void processEvent(final Event event, Change change) {
+    if (event instanceof CommentAddedEvent) {
+      onCommentAdded((CommentAddedEvent) event, change);
+    } else if (event instanceof WorkInProgressStateChangedEvent
+        || event instanceof PrivateStateChangedEvent) {
+      onStateChanged(change);
+    } else if (change != null) {
       onNewOrChangedPatchSet(change);
-    } else if (event instanceof CommentAddedEvent) {
-      onCommentAdded((CommentAddedEvent) event);
     }
     // it is not an else since the previous automatic submit(s) can potentially
     // trigger others on the whole project/branch
@@ -85,7 +173,61 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
     }
   }
 
+  private static boolean isChangeEventToProcess(Event event) {
+    return event instanceof TopicChangedEvent
+        // A blocking score might be removed when a reviewer is deleted.
+        || event instanceof ReviewerDeletedEvent
+        || event instanceof PatchSetCreatedEvent
+        || event instanceof CommentAddedEvent
+        // Work in progress and private changes are ignored until they are ready.
+        || event instanceof WorkInProgressStateChangedEvent
+        || event instanceof PrivateStateChangedEvent;
+  }
+
+  private static Change changeOf(ChangeEvent event) {
+    if (event instanceof PatchSetEvent) {
+      return Change.from(event.change.get(), ((PatchSetEvent) event).patchSet.get());
+    }
+    return Change.from(event.change.get());
+  }
+
+  /**
+   * Returns whether a change may be submitted, judging only from the event payload, without any
+   * NoteDb or index access.
+   */
+  private boolean shouldEvaluate(Change change) {
+    if (!change.isSubmitCandidate()) {
+      log.debug("Ignoring change {}: it is closed, work in progress or private", change.number);
+      return false;
+    }
+    if (state.isSupersededPatchSet(change.number, change.patchSet)) {
+      log.debug(
+          "Ignoring stale event on patchset {} of change {}", change.patchSet, change.number);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether this node holds the lease of the change: the lease of its topic if it is a
+   * cross-repo change, else the lease of its branch.
+   */
+  private boolean acquireLease(Change change) {
+    String key =
+        atomicityHelper.isAtomicReview(change)
+            ? BranchLeases.topicKey(change.topic)
+            : AutomergeState.branchKey(change.project, change.branch);
+    if (!leases.tryAcquire(key)) {
+      log.debug("Skipping change {}: {} is leased by another node", change.number, key);
+      return false;
+    }
+    return true;
+  }
+
   private void onNewOrChangedPatchSet(Change change) {
+    if (!acquireLease(change)) {
+      return;
+    }
     if (atomicityHelper.isAtomicReview(change)) {
       processNewAtomicPatchSet(change);
     }
@@ -96,15 +238,26 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
     }
   }
 
-  private void onCommentAdded(final CommentAddedEvent newComment) {
+  /**
+   * The change may have become ready to be submitted. Unlike a new patchset, it is not announced
+   * again as an atomic review.
+   */
+  private void onStateChanged(Change change) {
+    try {
+      autoSubmitIfMergeable(change);
+    } catch (Exception e) {
+      log.error("An exception occured while trying to merge change #" + change.number, e);
+    }
+  }
+
+  private void onCommentAdded(final CommentAddedEvent newComment, Change change) {
     if (!shouldProcessCommentEvent(newComment)) {
       return;
     }
 
-    ChangeAttribute change = newComment.change.get();
     try {
       checkReviewExists(change.number);
-      autoSubmitIfMergeable(Change.from(change));
+      autoSubmitIfMergeable(change);
     } catch (Exception e) {
       log.error("An exception occured while trying to atomic merge a change.", e);
       throw new RuntimeException(e);
@@ -114,10 +267,15 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
   private void onRefUpdatedEvent(final RefUpdatedEvent event) {
     String refName = event.getRefName();
     String projectName = event.getProjectNameKey().get();
+    if (!leases.tryAcquire(
+        AutomergeState.branchKey(projectName, Repository.shortenRefName(refName)))) {
+      log.debug(
+          "Skipping update of {} on {}: branch is leased by another node", refName, projectName);
+      return;
+    }
     try {
-      api.changes()
-          .query("branch:" + refName + " project:" + projectName + " is:submittable")
-          .get()
+      queryBatcher
+          .submittableChangesOfBranch(projectName, refName)
           .forEach(
               submittable -> {
                 try {
@@ -148,12 +306,49 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
   }
 
   private void autoSubmitIfMergeable(Change change) throws Exception {
-    if (atomicityHelper.isSubmittable(change.project, change.number)) {
+    long start = System.nanoTime();
+    try {
+      if (!acquireLease(change)) {
+        return;
+      }
+      EvaluationTrace trace = EvaluationTrace.start(config, change);
+      try {
+        evaluate(change, trace);
+      } catch (Exception e) {
+        trace.finish("failed: " + e);
+        throw e;
+      }
+    } finally {
+      state.evaluationFinished(System.nanoTime() - start);
+    }
+  }
+
+  private void evaluate(Change change, EvaluationTrace trace) throws Exception {
+    if (!atomicityHelper.isSubmittable(change.project, change.number, trace)) {
       if (atomicityHelper.isAtomicReview(change)) {
-        attemptToMergeAtomic(change);
+        // Tell why the topic is not merged yet. The other changes are not looked up, as this
+        // happens on most votes and comments.
+        TopicReadiness readiness = state.topicMemberEvaluated(change.topic, change);
+        readiness.setSubmittable(change.number, false);
+        topicBlocked(change.topic, readiness, change.number);
+      }
+      trace.finish("not submittable");
+      return;
+    }
+    submitLock.lock();
+    try {
+      if (executor.isVirtual() && !isStillSubmittable(change, trace)) {
+        return;
+      }
+      if (atomicityHelper.isAtomicReview(change)) {
+        trace.record("atomic", change.topic);
+        // Looked up under the lock, so that no change joining or leaving the topic is missed.
+        attemptToMergeAtomic(change, relatedChanges(change), trace);
       } else {
-        attemptToMergeNonAtomic(change);
+        attemptToMergeNonAtomic(change, trace);
       }
+    } finally {
+      submitLock.unlock();
     }
   }
 
@@ -175,32 +370,64 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
     return false;
   }
 
-  private void attemptToMergeAtomic(Change change) throws Exception {
+  /**
+   * In {@code VIRTUAL} mode, submit decisions are serialized, but the evaluation leading to them is
+   * not: a concurrent evaluation may have submitted the change in the meantime.
+   */
+  private boolean isStillSubmittable(Change change, EvaluationTrace trace) {
+    if (!atomicityHelper.isSubmittable(change.project, change.number, EvaluationTrace.disabled())) {
+      trace.finish("submitted or updated concurrently");
+      return false;
+    }
+    return true;
+  }
+
+  private List<ChangeInfo> relatedChanges(Change change) throws RestApiException {
     final List<ChangeInfo> related = Lists.newArrayList();
     if (atomicityHelper.isAtomicReview(change)) {
-      related.addAll(
-          api.changes()
-              .query("status: open AND topic: " + change.topic)
-              .withOption(ListChangesOption.CURRENT_REVISION)
-              .get());
+      related.addAll(queryBatcher.openChangesOfTopic(change.topic));
     } else {
       ChangeApi changeApi = api.changes().id(change.project, change.branch, change.id);
       related.add(changeApi.get(EnumSet.of(ListChangesOption.CURRENT_REVISION)));
     }
+    return related;
+  }
 
+  private void attemptToMergeAtomic(Change change, List<ChangeInfo> related, EvaluationTrace trace)
+      throws Exception {
+    TopicReadiness readiness = state.topicEvaluated(change.topic, related);
+    for (final ChangeInfo info : related) {
+      if (!config.isHandled(info.project, info.branch)) {
+        // Submitting the other changes only would break the atomicity of the topic.
+        log.info(
+            "Change {} is not submittable because same topic change {} is not handled.",
+            change.number,
+            info._number);
+        readiness.setNotHandled(info._number);
+        topicBlocked(change.topic, readiness, info._number);
+        trace.finish("topic change not handled");
+        return;
+      }
+    }
     for (final ChangeInfo info : related) {
-      if (!atomicityHelper.isSubmittable(info.project, info._number)) {
+      boolean submittable = atomicityHelper.isSubmittable(info.project, info._number, trace);
+      readiness.setSubmittable(info._number, submittable);
+      if (!submittable) {
         log.info(
             "Change {} is not submittable because same topic change {} has not all approvals.",
             change.number,
             info._number);
+        topicBlocked(change.topic, readiness, info._number);
+        trace.finish("topic change not submittable");
         return;
       }
     }
 
     for (final ChangeInfo info : related) {
       boolean dependsOnNonMergedCommit =
-          atomicityHelper.hasDependentReview(info.project, info._number);
+          atomicityHelper.hasDependentReview(info.project, info._number, trace);
+      trace.record("mergeable", info._number, info.mergeable);
+      readiness.setMergeable(info._number, info.mergeable, dependsOnNonMergedCommit);
       if (!info.mergeable || dependsOnNonMergedCommit) {
         log.info(
             "Change {} is not mergeable because same topic change {} {}",
@@ -211,6 +438,8 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
             !info.mergeable ? config.cantMergeGitConflict : config.cantMergeDependsOnNonMerged;
         reviewUpdater.commentOnReview(
             change.project, change.number, String.format(comment.getContent(), info._number));
+        topicBlocked(change.topic, readiness, info._number);
+        trace.finish("topic change not mergeable");
         return;
       }
     }
@@ -219,35 +448,47 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
     for (final ChangeInfo info : related) {
       atomicityHelper.mergeReview(info.project, info._number);
     }
+    state.topicSubmitted(change.topic);
+    trace.finish("submitted");
+  }
+
+  /** Records that a change blocks its topic, as found by the evaluation of the topic. */
+  private void topicBlocked(String topic, TopicReadiness readiness, int number) {
+    TopicReadiness.Member member = readiness.getMember(number);
+    if (member != null) {
+      state.topicBlocked(topic, member.getBlockedReason());
+    }
   }
 
-  private void attemptToMergeNonAtomic(Change change) throws Exception {
+  private void attemptToMergeNonAtomic(Change change, EvaluationTrace trace) throws Exception {
     // There may be a parent commit that it not merged while having all approvals
     // because it is part of a cross-repo. We take care to not let Gerrit merge it
     // by merging only the commits whose parents are already merged.
     boolean dependsOnNonMergedCommit =
-        atomicityHelper.hasDependentReview(change.project, change.number);
+        atomicityHelper.hasDependentReview(change.project, change.number, trace);
     if (dependsOnNonMergedCommit) {
       log.info(
           "Change {} is not mergeable because it depends on a non merged commit.", change.number);
+      trace.finish("depends on a non merged commit");
       return;
     }
 
     log.info("Submitting non-atomic change {}...", change.number);
     atomicityHelper.mergeReview(change.project, change.number);
+    trace.finish("submitted");
   }
 
   private void processNewAtomicPatchSet(Change change) {
     try {
       checkReviewExists(change.number);
-      log.info(String.format("Detected atomic review on change %d.", change.number));
+      log.info("Detected atomic review on change {}.", change.number);
       reviewUpdater.commentOnReview(
           change.project, change.number, config.atomicReviewDetected.getContent());
-      if (atomicityHelper.hasDependentReview(change.project, change.number)) {
+      if (atomicityHelper.hasDependentReview(
+          change.project, change.number, EvaluationTrace.disabled())) {
         log.info(
-            String.format(
-                "Warn the user on change %d, as other atomic changes exists on the same repository.",
-                change.number));
+            "Warn the user on change {}, as other atomic changes exists on the same repository.",
+            change.number);
         reviewUpdater.commentOnReview(
             change.project, change.number, config.atomicReviewsSameRepo.getContent());
       }
@@ -260,11 +501,31 @@ public class AutomaticMerger implements EventListener, LifecycleListener {
     api.changes().id(reviewNumber).get(EnumSet.of(ListChangesOption.CURRENT_REVISION));
   }
 
+  /** Submits a change found by the {@link Reconciler}, if it is ready. */
+  private void reconcile(Change change) {
+    if (!config.isHandled(change.project, change.branch)) {
+      return;
+    }
+    serialized(
+        () -> {
+          try {
+            autoSubmitIfMergeable(change);
+          } catch (Exception e) {
+            log.error(
+                "An exception occured while trying to reconcile change #" + change.number, e);
+          }
+        });
+  }
+
   @Override
   public void start() {
     log.info("Starting automatic merger plugin.");
+    reconciler.start(this::reconcile);
   }
 
   @Override
-  public void stop() {}
+  public void stop() {
+    reconciler.stop();
+    executor.stop();
+  }
 }
@@ -14,10 +14,20 @@
 
 package com.criteo.gerrit.plugins.automerge;
 
+import com.criteo.gerrit.plugins.automerge.AutomergeExecutor.ExecutionMode;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.inject.Inject;
 import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.Config;
 
 public class AutomergeConfig {
@@ -32,6 +42,29 @@ public class AutomergeConfig {
   private static final String defaultBotEmail = "qabot@criteo.com";
   private static final String defaultTopicPrefix = "crossrepo/";
   public static final String TOPIC_PREFIX_KEY = "topicPrefix";
+  public static final String TRACE_PROJECT_KEY = "traceProject";
+  public static final String INCLUDE_PROJECT_KEY = "includeProject";
+  public static final String EXCLUDE_PROJECT_KEY = "excludeProject";
+  public static final String INCLUDE_BRANCH_KEY = "includeBranch";
+  public static final String EXCLUDE_BRANCH_KEY = "excludeBranch";
+  public static final String RECONCILE_INTERVAL_KEY = "reconcileInterval";
+  public static final String RECONCILE_MAX_LOAD_KEY = "reconcileMaxLoad";
+  public static final String RECONCILE_PROJECTS_PER_RUN_KEY = "reconcileProjectsPerRun";
+  public static final String LEASE_DIRECTORY_KEY = "leaseDirectory";
+  public static final String LEASE_DURATION_KEY = "leaseDuration";
+  public static final String QUERY_BATCH_WINDOW_KEY = "queryBatchWindow";
+  public static final String QUERY_BATCH_SIZE_KEY = "queryBatchSize";
+  public static final String EXECUTION_MODE_KEY = "executionMode";
+  public static final String MAX_CONCURRENT_EVALUATIONS_KEY = "maxConcurrentEvaluations";
+  public static final String MAX_CONCURRENT_COMMENTS_KEY = "maxConcurrentComments";
+
+  private static final int defaultMaxConcurrentEvaluations = 16;
+  private static final int defaultMaxConcurrentComments = 4;
+  private static final int defaultQueryBatchSize = 10;
+  private static final long defaultLeaseDuration = TimeUnit.MINUTES.toMillis(1);
+  private static final long defaultLeasedReconcileInterval = TimeUnit.MINUTES.toMillis(5);
+  private static final int defaultReconcileMaxLoad = 5;
+  private static final int defaultReconcileProjectsPerRun = 10;
 
   public static final String getDefaultBotEmail() {
     return defaultBotEmail;
@@ -44,6 +77,22 @@ public class AutomergeConfig {
   private String botEmail;
   private final File templatesPath;
   private String topicPrefix;
+  private final NameMatcher atomicTopics;
+  private final NameMatcher includedProjects;
+  private final NameMatcher excludedProjects;
+  private final NameMatcher includedBranches;
+  private final NameMatcher excludedBranches;
+  private final Set<String> traceProjects;
+  private final long reconcileInterval;
+  private final int reconcileMaxLoad;
+  private final int reconcileProjectsPerRun;
+  private final Path leaseDirectory;
+  private final long leaseDuration;
+  private final long queryBatchWindow;
+  private final int queryBatchSize;
+  private final ExecutionMode executionMode;
+  private final int maxConcurrentEvaluations;
+  private final int maxConcurrentComments;
 
   @Inject
   public AutomergeConfig(@GerritServerConfig final Config config, final SitePaths paths) {
@@ -51,10 +100,70 @@ public class AutomergeConfig {
     if (botEmail == null) {
       botEmail = defaultBotEmail;
     }
-    topicPrefix = config.getString(AUTOMERGE_SECTION, null, TOPIC_PREFIX_KEY);
-    if (topicPrefix == null) {
-      topicPrefix = defaultTopicPrefix;
+    List<String> topicPrefixes =
+        Arrays.asList(config.getStringList(AUTOMERGE_SECTION, null, TOPIC_PREFIX_KEY));
+    if (topicPrefixes.isEmpty()) {
+      topicPrefixes = Collections.singletonList(defaultTopicPrefix);
     }
+    topicPrefix = topicPrefixes.get(0);
+    atomicTopics = NameMatcher.forPrefixes(topicPrefixes);
+    includedProjects = patterns(config, INCLUDE_PROJECT_KEY);
+    excludedProjects = patterns(config, EXCLUDE_PROJECT_KEY);
+    includedBranches = patterns(config, INCLUDE_BRANCH_KEY);
+    excludedBranches = patterns(config, EXCLUDE_BRANCH_KEY);
+    traceProjects =
+        ImmutableSet.copyOf(config.getStringList(AUTOMERGE_SECTION, null, TRACE_PROJECT_KEY));
+    reconcileMaxLoad =
+        Math.min(
+            100,
+            Math.max(
+                1,
+                config.getInt(
+                    AUTOMERGE_SECTION, RECONCILE_MAX_LOAD_KEY, defaultReconcileMaxLoad)));
+    reconcileProjectsPerRun =
+        Math.max(
+            1,
+            config.getInt(
+                AUTOMERGE_SECTION,
+                RECONCILE_PROJECTS_PER_RUN_KEY,
+                defaultReconcileProjectsPerRun));
+    String leaseDir = config.getString(AUTOMERGE_SECTION, null, LEASE_DIRECTORY_KEY);
+    leaseDirectory = leaseDir != null ? paths.site_path.resolve(leaseDir) : null;
+    long interval =
+        ConfigUtil.getTimeUnit(
+            config, AUTOMERGE_SECTION, null, RECONCILE_INTERVAL_KEY, 0, TimeUnit.MILLISECONDS);
+    // Without reconciler, the changes of a branch leased by a node that died would not be
+    // submitted until another event comes after the lease has expired.
+    reconcileInterval =
+        leaseDirectory != null && interval <= 0 ? defaultLeasedReconcileInterval : interval;
+    leaseDuration =
+        ConfigUtil.getTimeUnit(
+            config,
+            AUTOMERGE_SECTION,
+            null,
+            LEASE_DURATION_KEY,
+            defaultLeaseDuration,
+            TimeUnit.MILLISECONDS);
+    queryBatchWindow =
+        ConfigUtil.getTimeUnit(
+            config, AUTOMERGE_SECTION, null, QUERY_BATCH_WINDOW_KEY, 0, TimeUnit.MILLISECONDS);
+    queryBatchSize =
+        Math.max(
+            1, config.getInt(AUTOMERGE_SECTION, QUERY_BATCH_SIZE_KEY, defaultQueryBatchSize));
+    executionMode =
+        config.getEnum(AUTOMERGE_SECTION, null, EXECUTION_MODE_KEY, ExecutionMode.DIRECT);
+    maxConcurrentEvaluations =
+        Math.max(
+            1,
+            config.getInt(
+                AUTOMERGE_SECTION,
+                MAX_CONCURRENT_EVALUATIONS_KEY,
+                defaultMaxConcurrentEvaluations));
+    maxConcurrentComments =
+        Math.max(
+            1,
+            config.getInt(
+                AUTOMERGE_SECTION, MAX_CONCURRENT_COMMENTS_KEY, defaultMaxConcurrentComments));
 
     templatesPath = paths.etc_dir.toFile();
 
@@ -77,6 +186,11 @@ public class AutomergeConfig {
             "This cross-repo review is blocked by a non merged commit below #/c/%d.");
   }
 
+  private static NameMatcher patterns(Config config, String key) {
+    String[] patterns = config.getStringList(AUTOMERGE_SECTION, null, key);
+    return patterns.length > 0 ? NameMatcher.forPatterns(Arrays.asList(patterns)) : null;
+  }
+
   public final String getBotEmail() {
     return botEmail;
   }
@@ -85,7 +199,94 @@ public class AutomergeConfig {
     return new File(templatesPath.getPath(), fileName);
   }
 
+  /** Returns the first atomic topic prefix. */
   public final String getTopicPrefix() {
     return topicPrefix;
   }
+
+  /** Whether a topic starts with one of the atomic topic prefixes. */
+  public final boolean isAtomicTopic(String topic) {
+    return atomicTopics.matches(topic);
+  }
+
+  /** Whether some changes of a project may be handled, according to the project patterns. */
+  public final boolean isProjectHandled(String project) {
+    return (excludedProjects == null || !excludedProjects.matches(project))
+        && (includedProjects == null || includedProjects.matches(project));
+  }
+
+  /**
+   * Whether the changes of a branch must be handled by the plugin, according to the project and
+   * branch include and exclude patterns. Excludes take precedence over includes, and everything is
+   * included when there is no include pattern.
+   *
+   * @param project a project name
+   * @param branch a short or full branch name
+   */
+  public final boolean isHandled(String project, String branch) {
+    if (!isProjectHandled(project)) {
+      return false;
+    }
+    if (excludedBranches == null && includedBranches == null) {
+      return true;
+    }
+    String ref = RefNames.fullName(branch);
+    return (excludedBranches == null || !excludedBranches.matches(ref))
+        && (includedBranches == null || includedBranches.matches(ref));
+  }
+
+  /** Whether the decision chain of the evaluations must be logged for this project. */
+  public final boolean isTraceEnabled(String project) {
+    return traceProjects.contains(project);
+  }
+
+  /**
+   * Returns the time between two walks of the reconciler in milliseconds, 0 if disabled. The
+   * reconciler is always enabled when leases are.
+   */
+  public final long getReconcileInterval() {
+    return reconcileInterval;
+  }
+
+  /** Returns the maximum share of one thread, in percent, that the reconciler may use. */
+  public final int getReconcileMaxLoad() {
+    return reconcileMaxLoad;
+  }
+
+  public final int getReconcileProjectsPerRun() {
+    return reconcileProjectsPerRun;
+  }
+
+  /** Returns the directory shared by all nodes where leases are stored, or null if not set. */
+  public final Path getLeaseDirectory() {
+    return leaseDirectory;
+  }
+
+  /** Returns how long a lease is held without being renewed, in milliseconds. */
+  public final long getLeaseDuration() {
+    return leaseDuration;
+  }
+
+  /** Returns how long a lookup waits for others to batch with, in milliseconds, 0 if disabled. */
+  public final long getQueryBatchWindow() {
+    return queryBatchWindow;
+  }
+
+  public final int getQueryBatchSize() {
+    return queryBatchSize;
+  }
+
+  public final ExecutionMode getExecutionMode() {
+    return executionMode;
+  }
+
+  /** Returns how many changes can be evaluated at the same time in {@code VIRTUAL} mode. */
+  public final int getMaxConcurrentEvaluations() {
+    return maxConcurrentEvaluations;
+  }
+
+  /** Returns how many comments can be posted at the same time in {@code VIRTUAL} mode. */
+  public final int getMaxConcurrentComments() {
+    return maxConcurrentComments;
+  }
 }
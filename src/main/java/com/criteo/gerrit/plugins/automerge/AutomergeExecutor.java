@@ -0,0 +1,204 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the evaluations of changes and the comments posted by the plugin.
+ *
+ * <p>In {@code DIRECT} mode, everything runs on the thread that delivered the event. In {@code
+ * VIRTUAL} mode, each evaluation and comment runs on its own virtual thread, in the name of the bot
+ * user, and semaphores bound how many of them hit Gerrit at the same time. Comments on a change
+ * are still posted in order. Once stopped, the running tasks are given some time to finish, and
+ * new ones are dropped.
+ */
+@Singleton
+public class AutomergeExecutor {
+
+  private static final Logger log = LoggerFactory.getLogger(AutomergeExecutor.class);
+
+  private static final long STOP_TIMEOUT_SECONDS = 10;
+
+  public enum ExecutionMode {
+    DIRECT,
+    VIRTUAL
+  }
+
+  /** A task that may fail. */
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  private final ExecutorService executor;
+  private final Semaphore evaluations;
+  private final Semaphore comments;
+  private final Supplier<? extends AutoCloseable> botContext;
+  private final ConcurrentMap<Integer, CompletableFuture<Void>> commentsByChange =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  AutomergeExecutor(
+      AutomergeConfig config,
+      OneOffRequestContext requestContext,
+      AtomicityHelper atomicityHelper) {
+    this(
+        config.getExecutionMode() == ExecutionMode.VIRTUAL ? newVirtualThreadExecutor() : null,
+        config.getMaxConcurrentEvaluations(),
+        config.getMaxConcurrentComments(),
+        () -> requestContext.openAs(atomicityHelper.getBotAccountId()));
+  }
+
+  /**
+   * @param executor runs each task on its own thread, or null to run them on the calling thread
+   * @param botContext opens the request context of the bot user
+   */
+  @VisibleForTesting
+  AutomergeExecutor(
+      @Nullable ExecutorService executor,
+      int maxConcurrentEvaluations,
+      int maxConcurrentComments,
+      Supplier<? extends AutoCloseable> botContext) {
+    this.executor = executor;
+    this.evaluations = new Semaphore(maxConcurrentEvaluations);
+    this.comments = new Semaphore(maxConcurrentComments);
+    this.botContext = botContext;
+  }
+
+  /**
+   * Evaluates a change. Failures are logged, as there is nobody to report them to.
+   *
+   * @return whether the evaluation was run or scheduled, i.e. the executor is not stopped
+   */
+  public boolean evaluate(Runnable evaluation) {
+    if (executor == null) {
+      evaluation.run();
+      return true;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              runBounded(evaluations, evaluation::run);
+            } catch (Exception e) {
+              log.error("An exception occured while evaluating a change", e);
+            }
+          });
+      return true;
+    } catch (RejectedExecutionException e) {
+      log.warn("Dropping the evaluation of a change, as the plugin is stopped");
+      return false;
+    }
+  }
+
+  /** Posts a comment on a change, after the comments previously posted on it. */
+  public void postComment(int change, Task comment) throws Exception {
+    if (executor == null) {
+      comment.run();
+      return;
+    }
+    // Comments queued after a comment still running when stopped are dropped.
+    Executor next =
+        task -> {
+          try {
+            executor.execute(task);
+          } catch (RejectedExecutionException e) {
+            log.warn("Dropping a comment on change {}, as the plugin is stopped", change);
+          }
+        };
+    CompletableFuture<Void> posted =
+        commentsByChange.compute(
+            change,
+            (k, previous) ->
+                (previous != null ? previous : CompletableFuture.<Void>completedFuture(null))
+                    .handleAsync(
+                        (r, previousFailure) -> {
+                          try {
+                            runBounded(comments, comment);
+                          } catch (Exception e) {
+                            log.error("Cannot comment on change {}", change, e);
+                          }
+                          return null;
+                        },
+                        next));
+    posted.whenComplete((r, e) -> commentsByChange.remove(change, posted));
+  }
+
+  /** Returns whether evaluations run on their own virtual thread, i.e. in {@code VIRTUAL} mode. */
+  public boolean isVirtual() {
+    return executor != null;
+  }
+
+  /**
+   * Returns whether evaluations run in the name of the bot user, rather than in the name of the
+   * user whose action triggered them.
+   */
+  public boolean runsAsBot() {
+    return executor != null;
+  }
+
+  /** Stops accepting tasks, and waits for the running ones to finish for a while. */
+  public void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.warn("Interrupting the evaluations and comments still running after stop");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runBounded(Semaphore semaphore, Task task) throws Exception {
+    semaphore.acquire();
+    try (AutoCloseable ctx = botContext.get()) {
+      task.run();
+    } finally {
+      semaphore.release();
+    }
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      // Looked up reflectively, as the plugin is also built for JVMs without virtual threads.
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.warn("Virtual threads are not supported by this JVM, falling back to DIRECT mode");
+      return null;
+    }
+  }
+}
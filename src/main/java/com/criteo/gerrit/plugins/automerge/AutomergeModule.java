@@ -15,7 +15,11 @@
 
 package com.criteo.gerrit.plugins.automerge;
 
+import static com.google.gerrit.server.config.ConfigResource.CONFIG_KIND;
+
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.extensions.restapi.RestApiModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.events.EventListener;
 import com.google.inject.AbstractModule;
 
@@ -29,8 +33,24 @@ public class AutomergeModule extends AbstractModule {
   @Override
   protected void configure() {
     DynamicSet.bind(binder(), EventListener.class).to(AutomaticMerger.class);
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            listener().to(AutomaticMerger.class);
+          }
+        });
     bind(AutomergeConfig.class).asEagerSingleton();
     bind(AtomicityHelper.class);
     bind(ReviewUpdater.class);
+    install(SubmittabilityCache.module());
+    install(
+        new RestApiModule() {
+          @Override
+          protected void configure() {
+            get(CONFIG_KIND, "status").to(GetStatus.class);
+            get(CONFIG_KIND, "topic-readiness").to(GetTopicReadiness.class);
+          }
+        });
   }
 }
@@ -0,0 +1,174 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Live state of the plugin, as exposed to administrators by {@link GetStatus}. */
+@Singleton
+public class AutomergeState {
+  private static final int MAX_LATENCIES = 100;
+
+  private final ConcurrentMap<String, AtomicInteger> pendingByBranch = new ConcurrentHashMap<>();
+  private final Set<Integer> inFlightSubmits = ConcurrentHashMap.newKeySet();
+  private final AtomicLong submitAttempts = new AtomicLong();
+
+  /** Why cross-repo topics were not submitted, bounded as abandoned topics are never submitted. */
+  private final Cache<String, String> blockedTopics =
+      CacheBuilder.newBuilder().maximumSize(1000).build();
+
+  /** Highest patchset number seen per change, to detect events about superseded patchsets. */
+  private final Cache<Integer, Integer> latestPatchSets =
+      CacheBuilder.newBuilder().maximumSize(10000).build();
+
+  private final Cache<String, TopicReadiness> topicReadiness =
+      CacheBuilder.newBuilder().maximumSize(1000).build();
+
+  /** Ring of the most recent latencies: the next one is written at {@code nextLatency}. */
+  private final long[] latencies = new long[MAX_LATENCIES];
+
+  private int nextLatency;
+  private int latencyCount;
+
+  public static String branchKey(String project, String branch) {
+    return project + ":" + branch;
+  }
+
+  /** An event on this branch is waiting to be, or being, processed. */
+  public void workStarted(String branchKey) {
+    pendingByBranch.computeIfAbsent(branchKey, k -> new AtomicInteger()).incrementAndGet();
+  }
+
+  public void workFinished(String branchKey) {
+    pendingByBranch.computeIfPresent(
+        branchKey, (k, count) -> count.decrementAndGet() > 0 ? count : null);
+  }
+
+  public void submitStarted(int number) {
+    submitAttempts.incrementAndGet();
+    inFlightSubmits.add(number);
+  }
+
+  public void submitFinished(int number) {
+    inFlightSubmits.remove(number);
+  }
+
+  public void topicBlocked(String topic, String reason) {
+    blockedTopics.put(topic, reason);
+  }
+
+  /**
+   * Starts the evaluation of a cross-repo topic, whose changes are {@code related}. The topic is no
+   * longer reported as blocked, unless this evaluation finds it blocked again.
+   */
+  public TopicReadiness topicEvaluated(String topic, List<ChangeInfo> related) {
+    blockedTopics.invalidate(topic);
+    TopicReadiness readiness = new TopicReadiness(topic, related);
+    topicReadiness.put(topic, readiness);
+    return readiness;
+  }
+
+  /**
+   * Records the evaluation of a single change of a cross-repo topic, e.g. found not submittable
+   * before the other changes of the topic are looked up. The other changes keep the state found by
+   * the previous evaluations.
+   */
+  public TopicReadiness topicMemberEvaluated(String topic, Change change) {
+    blockedTopics.invalidate(topic);
+    return topicReadiness
+        .asMap()
+        .compute(
+            topic,
+            (t, previous) ->
+                (previous != null ? previous : new TopicReadiness(topic, ImmutableList.of()))
+                    .withMember(change.project, change.branch, change.number));
+  }
+
+  public void topicSubmitted(String topic) {
+    blockedTopics.invalidate(topic);
+    topicReadiness.invalidate(topic);
+  }
+
+  /** Returns the readiness found by the last evaluation of a topic, or null if none is known. */
+  public TopicReadiness getTopicReadiness(String topic) {
+    return topicReadiness.getIfPresent(topic);
+  }
+
+  /**
+   * Returns whether an event about this patchset is stale, i.e. an event about a newer patchset of
+   * the change has already been seen.
+   *
+   * @param number the change number
+   * @param patchSet the patchset number, or 0 if unknown
+   */
+  public boolean isSupersededPatchSet(int number, int patchSet) {
+    if (patchSet <= 0) {
+      return false;
+    }
+    return latestPatchSets.asMap().merge(number, patchSet, Math::max) > patchSet;
+  }
+
+  public synchronized void evaluationFinished(long elapsedNanos) {
+    latencies[nextLatency] = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    nextLatency = (nextLatency + 1) % MAX_LATENCIES;
+    latencyCount = Math.min(latencyCount + 1, MAX_LATENCIES);
+  }
+
+  public ImmutableMap<String, Integer> getPendingByBranch() {
+    ImmutableSortedMap.Builder<String, Integer> pending = ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, AtomicInteger> e : pendingByBranch.entrySet()) {
+      pending.put(e.getKey(), e.getValue().get());
+    }
+    return pending.build();
+  }
+
+  public ImmutableSortedSet<Integer> getInFlightSubmits() {
+    return ImmutableSortedSet.copyOf(inFlightSubmits);
+  }
+
+  /** Returns the number of submits attempted since the plugin was loaded. */
+  public long getSubmitAttempts() {
+    return submitAttempts.get();
+  }
+
+  public ImmutableMap<String, String> getBlockedTopics() {
+    return ImmutableSortedMap.copyOf(blockedTopics.asMap());
+  }
+
+  /** Returns the latencies of the most recent evaluations in milliseconds, oldest first. */
+  public synchronized ImmutableList<Long> getRecentLatencies() {
+    ImmutableList.Builder<Long> recent = ImmutableList.builder();
+    int first = nextLatency - latencyCount + MAX_LATENCIES;
+    for (int i = 0; i < latencyCount; i++) {
+      recent.add(latencies[(first + i) % MAX_LATENCIES]);
+    }
+    return recent.build();
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The live state of the plugin, as returned by {@link GetStatus}. */
+public class AutomergeStatusInfo {
+  /** Number of events waiting to be, or being, processed per {@code project:branch}. */
+  public Map<String, Integer> pendingByBranch;
+
+  /** Numbers of the changes being submitted. */
+  public Set<Integer> inFlightSubmits;
+
+  /** Number of submits attempted since the plugin was loaded. */
+  public long submitAttempts;
+
+  /** Reason why each cross-repo topic was not submitted on its last evaluation. */
+  public Map<String, String> blockedTopics;
+
+  public CacheInfo submittabilityCache;
+
+  /** Latencies of the most recent evaluations in milliseconds, oldest first. */
+  public List<Long> recentLatenciesMs;
+
+  public static class CacheInfo {
+    public long hits;
+    public long misses;
+    public double hitRatio;
+    public long evictions;
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.config.GerritInstanceId;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Leases on the branches (and cross-repo topics) this Gerrit node evaluates and submits changes
+ * for.
+ *
+ * <p>When several primaries receive the same events, only the node holding the lease of a branch
+ * acts on it. Leases are files in {@code automerge.leaseDirectory}, which must be shared by all the
+ * nodes. A lease is renewed each time its owner acquires it again, and can be taken over by another
+ * node once it has expired. Without lease directory, e.g. on a single node, all leases are granted.
+ *
+ * <p>Leases are checked and written while holding an exclusive lock on {@code leases.lock} in the
+ * lease directory, so that two nodes cannot both take over an expired lease. The leases expired
+ * for more than a lease duration are deleted while holding the same lock.
+ */
+@Singleton
+public class BranchLeases {
+
+  private static final Logger log = LoggerFactory.getLogger(BranchLeases.class);
+
+  private static final String LOCK_FILE = "leases.lock";
+  private static final String LEASE_SUFFIX = ".lease";
+
+  /**
+   * Serializes the lease updates within this JVM: a file lock is held on behalf of the whole JVM,
+   * and cannot be acquired twice.
+   */
+  private static final ReentrantLock jvmLock = new ReentrantLock();
+
+  private final Path directory;
+  private final String owner;
+  private final long duration;
+  private final LongSupplier clock;
+
+  /** Expiry of the leases held by this node, to avoid renewing them on every event. */
+  private final Map<String, Long> held = new ConcurrentHashMap<>();
+
+  private volatile long lastCleanup;
+
+  @Inject
+  BranchLeases(AutomergeConfig config, @Nullable @GerritInstanceId String instanceId) {
+    this(
+        config.getLeaseDirectory(),
+        (instanceId != null ? instanceId + "/" : "")
+            + ManagementFactory.getRuntimeMXBean().getName(),
+        config.getLeaseDuration(),
+        System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  BranchLeases(@Nullable Path directory, String owner, long duration, LongSupplier clock) {
+    this.directory = directory;
+    this.owner = owner;
+    this.duration = duration;
+    this.clock = clock;
+    if (directory != null) {
+      try {
+        Files.createDirectories(directory);
+      } catch (IOException e) {
+        log.error("Cannot create lease directory {}", directory, e);
+      }
+    }
+  }
+
+  /** Whether leases are shared with other nodes, i.e. some may be held elsewhere. */
+  public boolean isShared() {
+    return directory != null;
+  }
+
+  public static String topicKey(String topic) {
+    return "topic:" + topic;
+  }
+
+  /**
+   * Acquires or renews the lease of a branch or topic for this node.
+   *
+   * @param key a {@link AutomergeState#branchKey} or a {@link #topicKey}
+   * @return whether this node now holds the lease
+   */
+  public boolean tryAcquire(String key) {
+    if (directory == null) {
+      return true;
+    }
+    long now = clock.getAsLong();
+    Long expiry = held.get(key);
+    if (expiry != null && expiry - now > duration / 2) {
+      return true;
+    }
+
+    Path file = leaseFile(key);
+    jvmLock.lock();
+    try (FileChannel channel =
+            FileChannel.open(
+                directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock()) {
+      Lease current = read(file);
+      if (current != null && !current.owner.equals(owner) && current.expiry > now) {
+        held.remove(key);
+        return false;
+      }
+      Path tmp = Files.createTempFile(directory, "lease", ".tmp");
+      Files.write(tmp, (owner + "\n" + (now + duration) + "\n" + key + "\n").getBytes(UTF_8));
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      held.put(key, now + duration);
+      if (now - lastCleanup > duration) {
+        lastCleanup = now;
+        deleteExpiredLeases(now);
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot acquire lease {} in {}", key, directory, e);
+      held.remove(key);
+      return false;
+    } finally {
+      jvmLock.unlock();
+    }
+  }
+
+  /**
+   * Returns whether another node holds the lease of a branch or topic, without acquiring it. Meant
+   * to skip work early: the lease must still be acquired before acting on the branch or topic.
+   */
+  public boolean isHeldElsewhere(String key) {
+    if (directory == null || held.containsKey(key)) {
+      return false;
+    }
+    try {
+      Lease current = read(leaseFile(key));
+      return current != null && !current.owner.equals(owner) && current.expiry > clock.getAsLong();
+    } catch (IOException e) {
+      log.warn("Cannot read lease {} in {}", key, directory, e);
+      return false;
+    }
+  }
+
+  /**
+   * Forgets the leases expired for more than a lease duration, i.e. of the branches and topics no
+   * node has been working on lately. Must be called while holding the lock of the lease directory.
+   */
+  private void deleteExpiredLeases(long now) throws IOException {
+    held.values().removeIf(expiry -> expiry <= now);
+    try (DirectoryStream<Path> leases = Files.newDirectoryStream(directory, "*" + LEASE_SUFFIX)) {
+      for (Path file : leases) {
+        Lease lease = read(file);
+        if (lease == null || lease.expiry + duration < now) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  private Path leaseFile(String key) {
+    return directory.resolve(Hashing.sha256().hashString(key, UTF_8) + LEASE_SUFFIX);
+  }
+
+  @Nullable
+  private static Lease read(Path file) throws IOException {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, UTF_8);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    if (lines.size() < 2) {
+      return null;
+    }
+    try {
+      return new Lease(lines.get(0), Long.parseLong(lines.get(1)));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static class Lease {
+    final String owner;
+    final long expiry;
+
+    Lease(String owner, long expiry) {
+      this.owner = owner;
+      this.expiry = expiry;
+    }
+  }
+}
@@ -14,14 +14,19 @@
 
 package com.criteo.gerrit.plugins.automerge;
 
+import com.google.gerrit.extensions.client.ChangeStatus;
 import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
 import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.data.PatchSetAttribute;
 
 /**
  * A change represented only with the fields that this plugin requires.
  *
  * <p>As a change can be a {@link ChangeAttribute} or a {@link ChangeInfo}, this intermediate class
- * is needed.
+ * is needed. It is an immutable snapshot of the change when the event or query result was built,
+ * and carries enough of its state to discard changes that cannot be submitted without loading
+ * them.
  */
 public class Change {
   public final String project;
@@ -29,26 +34,79 @@ public class Change {
   public final String id;
   public final String topic;
   public final String branch;
+  /** Status of the change, or null if unknown. */
+  public final ChangeStatus status;
+  public final boolean workInProgress;
+  public final boolean isPrivate;
+  /** Number of the patchset, or 0 if unknown. */
+  public final int patchSet;
 
-  private Change(String project, int number, String id, String topic, String branch) {
+  private Change(
+      String project,
+      int number,
+      String id,
+      String topic,
+      String branch,
+      ChangeStatus status,
+      boolean workInProgress,
+      boolean isPrivate,
+      int patchSet) {
     this.project = project;
     this.number = number;
     this.id = id;
     this.topic = topic;
     this.branch = branch;
+    this.status = status;
+    this.workInProgress = workInProgress;
+    this.isPrivate = isPrivate;
+    this.patchSet = patchSet;
   }
 
   public static Change from(ChangeAttribute changeAttribute) {
+    return from(changeAttribute, changeAttribute.currentPatchSet);
+  }
+
+  /**
+   * Creates a change from an event payload.
+   *
+   * @param changeAttribute the change of the event
+   * @param patchSet the patchset the event is about, or null if not known
+   */
+  public static Change from(ChangeAttribute changeAttribute, PatchSetAttribute patchSet) {
     return new Change(
         changeAttribute.project,
         changeAttribute.number,
         changeAttribute.id,
         changeAttribute.topic,
-        changeAttribute.branch);
+        changeAttribute.branch,
+        changeAttribute.status != null ? changeAttribute.status.asChangeStatus() : null,
+        Boolean.TRUE.equals(changeAttribute.wip),
+        Boolean.TRUE.equals(changeAttribute.isPrivate),
+        patchSet != null ? patchSet.number : 0);
   }
 
   public static Change from(ChangeInfo changeInfo) {
+    RevisionInfo currentRevision =
+        changeInfo.currentRevision != null && changeInfo.revisions != null
+            ? changeInfo.revisions.get(changeInfo.currentRevision)
+            : null;
     return new Change(
-        changeInfo.project, changeInfo._number, changeInfo.id, changeInfo.topic, changeInfo.branch);
+        changeInfo.project,
+        changeInfo._number,
+        changeInfo.id,
+        changeInfo.topic,
+        changeInfo.branch,
+        changeInfo.status,
+        Boolean.TRUE.equals(changeInfo.workInProgress),
+        Boolean.TRUE.equals(changeInfo.isPrivate),
+        currentRevision != null ? currentRevision._number : 0);
+  }
+
+  /**
+   * Returns whether the change may be submitted, i.e. it is not closed, work in progress or
+   * private. Submit requirements still have to be checked.
+   */
+  public boolean isSubmitCandidate() {
+    return (status == null || status == ChangeStatus.NEW) && !workInProgress && !isPrivate;
   }
 }
@@ -0,0 +1,79 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The chain of decisions taken by the plugin while evaluating a change.
+ *
+ * <p>Traces are only recorded for the projects listed in {@code automerge.traceProject}. For the
+ * other projects, the shared disabled trace is returned and recording costs nothing.
+ */
+public class EvaluationTrace {
+
+  private static final Logger log = LoggerFactory.getLogger(EvaluationTrace.class);
+
+  private static final EvaluationTrace DISABLED = new EvaluationTrace(null, 0);
+
+  private final String project;
+  private final int number;
+  private final List<String> steps;
+
+  private EvaluationTrace(String project, int number) {
+    this.project = project;
+    this.number = number;
+    this.steps = project != null ? new ArrayList<>() : null;
+  }
+
+  public static EvaluationTrace start(AutomergeConfig config, Change change) {
+    return start(config, change.project, change.number);
+  }
+
+  public static EvaluationTrace start(AutomergeConfig config, String project, int number) {
+    if (!config.isTraceEnabled(project)) {
+      return DISABLED;
+    }
+    return new EvaluationTrace(project, number);
+  }
+
+  public static EvaluationTrace disabled() {
+    return DISABLED;
+  }
+
+  /** Records a step of the evaluation, e.g. {@code record("submittable", false)}. */
+  public void record(String step, Object outcome) {
+    if (steps != null) {
+      steps.add(step + "=" + outcome);
+    }
+  }
+
+  /** Records a step of the evaluation about another change, e.g. a member of the same topic. */
+  public void record(String step, int otherChange, Object outcome) {
+    if (steps != null) {
+      steps.add(step + "[" + otherChange + "]=" + outcome);
+    }
+  }
+
+  /** Logs the recorded decision chain, ending with the final outcome of the evaluation. */
+  public void finish(String outcome) {
+    if (steps != null) {
+      log.info("Evaluation of change {} on project {}: {} -> {}", number, project, steps, outcome);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.common.cache.CacheStats;
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Read-only view of the live state of the plugin.
+ *
+ * <p>Served as {@code GET /config/server/autosubmitter~status}.
+ */
+@Singleton
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class GetStatus implements RestReadView<ConfigResource> {
+
+  private final AutomergeState state;
+  private final SubmittabilityCache submittabilityCache;
+
+  @Inject
+  GetStatus(AutomergeState state, SubmittabilityCache submittabilityCache) {
+    this.state = state;
+    this.submittabilityCache = submittabilityCache;
+  }
+
+  @Override
+  public Response<AutomergeStatusInfo> apply(ConfigResource resource) {
+    AutomergeStatusInfo info = new AutomergeStatusInfo();
+    info.pendingByBranch = state.getPendingByBranch();
+    info.inFlightSubmits = state.getInFlightSubmits();
+    info.submitAttempts = state.getSubmitAttempts();
+    info.blockedTopics = state.getBlockedTopics();
+    info.recentLatenciesMs = state.getRecentLatencies();
+
+    CacheStats stats = submittabilityCache.stats();
+    info.submittabilityCache = new AutomergeStatusInfo.CacheInfo();
+    info.submittabilityCache.hits = stats.hitCount();
+    info.submittabilityCache.misses = stats.missCount();
+    info.submittabilityCache.hitRatio = stats.hitRate();
+    info.submittabilityCache.evictions = stats.evictionCount();
+    return Response.ok(info);
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.RefPermission;
+import com.google.inject.Inject;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Readiness of each change of a cross-repo topic, as found by the last evaluation of the topic.
+ *
+ * <p>Served as {@code GET /config/server/autosubmitter~topic-readiness?topic=<topic>}. It is
+ * answered from the state kept by the plugin only, so it does not load any change. Changes on
+ * branches the caller cannot read are left out, and so is the reason why the topic is blocked if
+ * it is one of them.
+ *
+ * <p>The state is kept by each node. With leases, only the node holding the lease of the topic
+ * evaluates it, so the other nodes answer that the topic is evaluated elsewhere.
+ */
+public class GetTopicReadiness implements RestReadView<ConfigResource> {
+
+  private final AutomergeState state;
+  private final BranchLeases leases;
+  private final PermissionBackend permissionBackend;
+
+  private String topic;
+
+  @Inject
+  GetTopicReadiness(
+      AutomergeState state, BranchLeases leases, PermissionBackend permissionBackend) {
+    this.state = state;
+    this.leases = leases;
+    this.permissionBackend = permissionBackend;
+  }
+
+  @Option(name = "--topic", metaVar = "TOPIC", usage = "cross-repo topic to report on")
+  public GetTopicReadiness setTopic(String topic) {
+    this.topic = topic;
+    return this;
+  }
+
+  @Override
+  public Response<TopicReadinessInfo> apply(ConfigResource resource)
+      throws BadRequestException, ResourceNotFoundException, PermissionBackendException {
+    if (topic == null || topic.isEmpty()) {
+      throw new BadRequestException("topic is required");
+    }
+    if (leases.isHeldElsewhere(BranchLeases.topicKey(topic))) {
+      throw new ResourceNotFoundException(
+          "Topic " + topic + " is evaluated by another node, which holds its lease");
+    }
+    TopicReadiness readiness = state.getTopicReadiness(topic);
+    if (readiness == null) {
+      throw new ResourceNotFoundException("No evaluation known for topic " + topic);
+    }
+
+    TopicReadinessInfo info = new TopicReadinessInfo();
+    info.topic = readiness.topic;
+    info.evaluated = Timestamp.from(readiness.evaluated);
+    info.changes = new ArrayList<>();
+    for (TopicReadiness.Member member : readiness.getMembers()) {
+      if (!permissionBackend
+          .currentUser()
+          .ref(BranchNameKey.create(Project.nameKey(member.project), member.branch))
+          .test(RefPermission.READ)) {
+        continue;
+      }
+      TopicReadinessInfo.MemberInfo m = new TopicReadinessInfo.MemberInfo();
+      m.project = member.project;
+      m.branch = member.branch;
+      m._number = member.number;
+      m.submittable = member.isSubmittable();
+      m.mergeable = member.isMergeable();
+      m.blockedByUnmergedParent = member.isBlockedByUnmergedParent();
+      info.changes.add(m);
+      if (info.blockedReason == null) {
+        info.blockedReason = member.getBlockedReason();
+      }
+    }
+    if (info.changes.isEmpty()) {
+      throw new ResourceNotFoundException("No evaluation known for topic " + topic);
+    }
+    return Response.ok(info);
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Matches names (projects, branches, topics) against a set of patterns compiled once.
+ *
+ * <p>Patterns follow the Gerrit conventions: a pattern starting with {@code ^} is a regular
+ * expression, a pattern ending with {@code *} matches all the names starting with what precedes
+ * it, and any other pattern matches only the exact name. Exact names are looked up in a hash set,
+ * prefixes in a trie, and all regular expressions are combined into a single one, so matching a
+ * name costs the same whatever the number of patterns.
+ */
+public class NameMatcher {
+  private final ImmutableSet<String> exact;
+  private final Node prefixes;
+  private final Pattern regex;
+
+  private NameMatcher(ImmutableSet<String> exact, Node prefixes, Pattern regex) {
+    this.exact = exact;
+    this.prefixes = prefixes;
+    this.regex = regex;
+  }
+
+  /** Returns a matcher of the names matching any of the given patterns. */
+  public static NameMatcher forPatterns(Iterable<String> patterns) {
+    ImmutableSet.Builder<String> exact = ImmutableSet.builder();
+    Node prefixes = new Node();
+    List<String> regexes = new ArrayList<>();
+    for (String pattern : patterns) {
+      if (pattern.startsWith("^")) {
+        regexes.add(pattern);
+      } else if (pattern.endsWith("*")) {
+        prefixes.add(pattern.substring(0, pattern.length() - 1));
+      } else {
+        exact.add(pattern);
+      }
+    }
+    return new NameMatcher(exact.build(), prefixes, combine(regexes));
+  }
+
+  /** Returns a matcher of the names starting with any of the given prefixes. */
+  public static NameMatcher forPrefixes(Iterable<String> prefixes) {
+    Node trie = new Node();
+    for (String prefix : prefixes) {
+      trie.add(prefix);
+    }
+    return new NameMatcher(ImmutableSet.of(), trie, null);
+  }
+
+  public boolean matches(String name) {
+    if (name == null) {
+      return false;
+    }
+    return exact.contains(name)
+        || prefixes.matchesPrefixOf(name)
+        || (regex != null && regex.matcher(name).matches());
+  }
+
+  private static Pattern combine(List<String> regexes) {
+    if (regexes.isEmpty()) {
+      return null;
+    }
+    return Pattern.compile(
+        regexes.stream().map(r -> "(?:" + r.substring(1) + ")").collect(Collectors.joining("|")));
+  }
+
+  /** A node of the prefix trie. */
+  private static class Node {
+    final Map<Character, Node> children = new HashMap<>();
+    boolean terminal;
+
+    void add(String prefix) {
+      Node node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+      }
+      node.terminal = true;
+    }
+
+    boolean matchesPrefixOf(String name) {
+      Node node = this;
+      for (int i = 0; !node.terminal; i++) {
+        if (i == name.length()) {
+          return false;
+        }
+        node = node.children.get(name.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
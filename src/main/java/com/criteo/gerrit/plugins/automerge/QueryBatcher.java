@@ -0,0 +1,242 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.criteo.gerrit.plugins.automerge.Queries.quote;
+import static java.util.stream.Collectors.joining;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import org.eclipse.jgit.lib.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the topic and branch lookups issued at the same time into a single index query.
+ *
+ * <p>The first lookup of a batch waits for {@code automerge.queryBatchWindow} so that concurrent
+ * lookups can join it, then runs one query OR-ing all their predicates, and dispatches the
+ * results back to each lookup. A batch is run earlier once it has {@code automerge.queryBatchSize}
+ * lookups. With a window of 0, every lookup is queried on its own.
+ *
+ * <p>Lookups are only batched when they all run in the name of the bot user, i.e. in {@code
+ * VIRTUAL} execution mode: otherwise, each lookup would get the changes visible to whoever ran the
+ * batch. When the results of a batch are truncated by the query limit, each lookup is queried on
+ * its own again. A topic lookup still truncated fails rather than return a part of the topic.
+ */
+@Singleton
+public class QueryBatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(QueryBatcher.class);
+
+  @VisibleForTesting
+  enum Kind {
+    /** Open changes of a topic. */
+    TOPIC,
+    /** Submittable changes of a {@code project:branch}. */
+    BRANCH
+  }
+
+  private final GerritApi api;
+  private final long window;
+  private final int batchSize;
+
+  private final Map<Kind, Map<String, CompletableFuture<List<ChangeInfo>>>> pending =
+      new EnumMap<>(Kind.class);
+
+  @Inject
+  QueryBatcher(GerritApi api, AutomergeConfig config, AutomergeExecutor executor) {
+    this(api, executor.runsAsBot() ? config.getQueryBatchWindow() : 0, config.getQueryBatchSize());
+    if (config.getQueryBatchWindow() > 0 && !executor.runsAsBot()) {
+      log.warn("Lookups are not batched, as they do not run in VIRTUAL execution mode.");
+    }
+  }
+
+  @VisibleForTesting
+  QueryBatcher(GerritApi api, long window, int batchSize) {
+    this.api = api;
+    this.window = window;
+    this.batchSize = batchSize;
+  }
+
+  /** Returns the open changes of a topic, with their current revision. */
+  public List<ChangeInfo> openChangesOfTopic(String topic) throws RestApiException {
+    return lookup(Kind.TOPIC, topic);
+  }
+
+  /**
+   * Returns the submittable changes of a branch, with their current revision.
+   *
+   * @param project a project name
+   * @param branch a short or full branch name
+   */
+  public List<ChangeInfo> submittableChangesOfBranch(String project, String branch)
+      throws RestApiException {
+    return lookup(Kind.BRANCH, AutomergeState.branchKey(project, shortBranch(branch)));
+  }
+
+  private List<ChangeInfo> lookup(Kind kind, String key) throws RestApiException {
+    if (window <= 0) {
+      Map<String, CompletableFuture<List<ChangeInfo>>> single = new HashMap<>();
+      single.put(key, new CompletableFuture<>());
+      run(kind, single);
+      return await(single.get(key));
+    }
+
+    Map<String, CompletableFuture<List<ChangeInfo>>> toRun = null;
+    Map<String, CompletableFuture<List<ChangeInfo>>> led = null;
+    CompletableFuture<List<ChangeInfo>> result;
+    synchronized (pending) {
+      Map<String, CompletableFuture<List<ChangeInfo>>> batch = pending.get(kind);
+      if (batch == null) {
+        batch = new LinkedHashMap<>();
+        pending.put(kind, batch);
+        led = batch;
+      }
+      result = batch.computeIfAbsent(key, k -> new CompletableFuture<>());
+      if (batch.size() >= batchSize) {
+        pending.remove(kind);
+        toRun = batch;
+      }
+    }
+
+    if (toRun == null && led != null) {
+      try {
+        // Returns early if the batch is run once full by another lookup.
+        result.get(window, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // The batch is run below, or its failure is reported by await.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (pending) {
+        if (pending.get(kind) == led) {
+          pending.remove(kind);
+          toRun = led;
+        }
+      }
+    }
+    if (toRun != null) {
+      run(kind, toRun);
+    }
+    return await(result);
+  }
+
+  private void run(Kind kind, Map<String, CompletableFuture<List<ChangeInfo>>> batch) {
+    try {
+      List<ChangeInfo> changes =
+          api.changes()
+              .query(query(kind, batch.keySet()))
+              .withOption(ListChangesOption.CURRENT_REVISION)
+              .get();
+      if (isTruncated(changes)) {
+        if (batch.size() > 1) {
+          // The changes of the other lookups may have pushed the ones of a lookup past the limit.
+          for (Map.Entry<String, CompletableFuture<List<ChangeInfo>>> e : batch.entrySet()) {
+            run(kind, Collections.singletonMap(e.getKey(), e.getValue()));
+          }
+          return;
+        }
+        String key = batch.keySet().iterator().next();
+        if (kind == Kind.TOPIC) {
+          throw new RestApiException("Too many open changes in topic " + key);
+        }
+        // The remaining changes are found on the ref updates caused by submitting these ones.
+        log.warn("Too many submittable changes on {}, only {} are considered", key, changes.size());
+      }
+
+      Map<String, List<ChangeInfo>> results = new HashMap<>();
+      Function<ChangeInfo, String> keyOf =
+          kind == Kind.TOPIC
+              ? info -> info.topic
+              : info -> AutomergeState.branchKey(info.project, info.branch);
+      for (ChangeInfo info : changes) {
+        results.computeIfAbsent(keyOf.apply(info), k -> new ArrayList<>()).add(info);
+      }
+      for (Map.Entry<String, CompletableFuture<List<ChangeInfo>>> e : batch.entrySet()) {
+        e.getValue()
+            .complete(ImmutableList.copyOf(results.getOrDefault(e.getKey(), ImmutableList.of())));
+      }
+    } catch (RestApiException | RuntimeException e) {
+      batch.values().forEach(f -> f.completeExceptionally(e));
+    }
+  }
+
+  private static boolean isTruncated(List<ChangeInfo> changes) {
+    return !changes.isEmpty() && Boolean.TRUE.equals(changes.get(changes.size() - 1)._moreChanges);
+  }
+
+  @VisibleForTesting
+  static String query(Kind kind, Iterable<String> keys) {
+    List<String> predicates = new ArrayList<>();
+    for (String key : keys) {
+      if (kind == Kind.TOPIC) {
+        predicates.add("topic:" + quote(key));
+      } else {
+        int sep = key.lastIndexOf(':');
+        predicates.add(
+            "(project:"
+                + quote(key.substring(0, sep))
+                + " AND branch:"
+                + quote(Constants.R_HEADS + key.substring(sep + 1))
+                + ")");
+      }
+    }
+    String or = predicates.stream().collect(joining(" OR "));
+    if (kind == Kind.TOPIC) {
+      return "status:open AND (" + or + ")";
+    }
+    return "is:submittable AND (" + or + ")";
+  }
+
+  private static String shortBranch(String branch) {
+    return branch.startsWith(Constants.R_HEADS)
+        ? branch.substring(Constants.R_HEADS.length())
+        : branch;
+  }
+
+  private static List<ChangeInfo> await(CompletableFuture<List<ChangeInfo>> result)
+      throws RestApiException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RestApiException("Interrupted while waiting for query results", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RestApiException) {
+        throw (RestApiException) e.getCause();
+      }
+      throw new RestApiException("Cannot query changes", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,297 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.criteo.gerrit.plugins.automerge.Queries.quote;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.api.projects.BranchInfo;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically walks all the projects to submit the changes whose events were missed, e.g. because
+ * they were emitted while the plugin was being reloaded.
+ *
+ * <p>Projects are processed a few at a time, from a cursor persisted in the plugin data directory
+ * so that a walk resumes where it stopped after a restart. Between two batches, the reconciler
+ * sleeps long enough to stay below {@code automerge.reconcileMaxLoad} percent of one thread.
+ *
+ * <p>When leases are shared between nodes, the branches leased by another node are left to that
+ * node, so that each project is not queried by every node.
+ *
+ * <p>The first walk starts shortly after the plugin, so that the changes missed while it was
+ * stopped are submitted without waiting for a whole {@code automerge.reconcileInterval}.
+ */
+@Singleton
+public class Reconciler implements Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(Reconciler.class);
+
+  private static final String CURSOR_FILE = "reconciler.cursor";
+
+  private static final long FIRST_RUN_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private final AutomergeConfig config;
+  private final WorkQueue workQueue;
+  private final ProjectCache projectCache;
+  private final GerritApi api;
+  private final OneOffRequestContext requestContext;
+  private final AtomicityHelper atomicityHelper;
+  private final BranchLeases leases;
+  private final Cursor cursor;
+
+  private ScheduledExecutorService executor;
+  private Consumer<Change> submitter;
+
+  @Inject
+  Reconciler(
+      AutomergeConfig config,
+      WorkQueue workQueue,
+      ProjectCache projectCache,
+      GerritApi api,
+      OneOffRequestContext requestContext,
+      AtomicityHelper atomicityHelper,
+      BranchLeases leases,
+      @PluginData Path pluginData) {
+    this.config = config;
+    this.workQueue = workQueue;
+    this.projectCache = projectCache;
+    this.api = api;
+    this.requestContext = requestContext;
+    this.atomicityHelper = atomicityHelper;
+    this.leases = leases;
+    this.cursor = new Cursor(pluginData.resolve(CURSOR_FILE));
+  }
+
+  /**
+   * Starts reconciling, if enabled.
+   *
+   * @param submitter submits a change if it is ready
+   */
+  public synchronized void start(Consumer<Change> submitter) {
+    if (config.getReconcileInterval() <= 0) {
+      log.info("Reconciler is disabled.");
+      return;
+    }
+    this.submitter = submitter;
+    executor = workQueue.createQueue(1, "Autosubmitter-Reconciler");
+    executor.schedule(this, firstRunDelay(config.getReconcileInterval()), TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    boolean walkCompleted = true;
+    try (ManualRequestContext ctx = requestContext.openAs(atomicityHelper.getBotAccountId())) {
+      walkCompleted = reconcileNextProjects();
+    } catch (RuntimeException e) {
+      log.error("Reconciliation of the open changes failed", e);
+    }
+    long busy = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    scheduleNext(
+        walkCompleted
+            ? config.getReconcileInterval()
+            : idleTimeAfter(busy, config.getReconcileMaxLoad()));
+  }
+
+  /**
+   * Reconciles the next projects after the cursor.
+   *
+   * @return whether the walk through all the projects is completed
+   */
+  private boolean reconcileNextProjects() {
+    return walk(projectCache.all(), cursor, config.getReconcileProjectsPerRun(), this::reconcile);
+  }
+
+  /**
+   * Reconciles at most {@code perRun} projects after the cursor, moving the cursor along.
+   *
+   * @return whether the walk through all the projects is completed
+   */
+  @VisibleForTesting
+  static boolean walk(
+      ImmutableSortedSet<Project.NameKey> projects,
+      Cursor cursor,
+      int perRun,
+      Consumer<String> reconcile) {
+    ImmutableSortedSet<Project.NameKey> remaining = remainingProjects(projects, cursor.read());
+    for (Project.NameKey project : Iterables.limit(remaining, perRun)) {
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      reconcile.accept(project.get());
+      cursor.write(project.get());
+    }
+    if (remaining.size() > perRun) {
+      return false;
+    }
+    cursor.write(null);
+    return true;
+  }
+
+  /** Returns the projects still to walk through, i.e. after the cursor if any. */
+  @VisibleForTesting
+  static ImmutableSortedSet<Project.NameKey> remainingProjects(
+      ImmutableSortedSet<Project.NameKey> projects, String cursor) {
+    return cursor == null ? projects : projects.tailSet(Project.nameKey(cursor), false);
+  }
+
+  private void reconcile(String project) {
+    if (!config.isProjectHandled(project)) {
+      return;
+    }
+    try {
+      List<String> leasedElsewhere = branchesLeasedElsewhere(project);
+      if (leasedElsewhere == null) {
+        log.debug("Skipping project {}: all its branches are leased by other nodes", project);
+        return;
+      }
+      for (ChangeInfo info :
+          api.changes()
+              .query(submittableChangesQuery(project, leasedElsewhere))
+              .withOption(ListChangesOption.CURRENT_REVISION)
+              .get()) {
+        log.info("Reconciling submittable change {} on project {}", info._number, project);
+        submitter.accept(Change.from(info));
+      }
+    } catch (RestApiException e) {
+      log.error("Cannot query submittable changes on project {}", project, e);
+    }
+  }
+
+  /**
+   * Returns the handled branches of a project whose lease is held by another node, as they are
+   * reconciled by that node, or null if there is nothing left to reconcile on the project.
+   */
+  @Nullable
+  private List<String> branchesLeasedElsewhere(String project) throws RestApiException {
+    if (!leases.isShared()) {
+      return Collections.emptyList();
+    }
+    List<String> handled = new ArrayList<>();
+    List<String> leasedElsewhere = new ArrayList<>();
+    for (BranchInfo branch : api.projects().name(project).branches().get()) {
+      if (!branch.ref.startsWith(Constants.R_HEADS) || !config.isHandled(project, branch.ref)) {
+        continue;
+      }
+      handled.add(branch.ref);
+      if (leases.isHeldElsewhere(
+          AutomergeState.branchKey(project, Repository.shortenRefName(branch.ref)))) {
+        leasedElsewhere.add(branch.ref);
+      }
+    }
+    return !handled.isEmpty() && leasedElsewhere.size() == handled.size() ? null : leasedElsewhere;
+  }
+
+  /** Returns the query of the submittable changes of a project, except on the skipped branches. */
+  @VisibleForTesting
+  static String submittableChangesQuery(String project, Collection<String> skippedBranches) {
+    StringBuilder query =
+        new StringBuilder("status:open is:submittable project:").append(quote(project));
+    for (String branch : skippedBranches) {
+      query.append(" -branch:").append(quote(branch));
+    }
+    return query.toString();
+  }
+
+  /** Returns how long to wait before the first walk, given the interval between two walks. */
+  @VisibleForTesting
+  static long firstRunDelay(long interval) {
+    return Math.min(interval, FIRST_RUN_DELAY_MILLIS);
+  }
+
+  /**
+   * Returns how long to sleep after having worked {@code busy} ms, to stay below {@code maxLoad}
+   * percent of one thread.
+   */
+  @VisibleForTesting
+  static long idleTimeAfter(long busy, int maxLoad) {
+    return Math.max(1, busy * (100 - maxLoad) / maxLoad);
+  }
+
+  private synchronized void scheduleNext(long delayMillis) {
+    if (executor != null) {
+      executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** The last project reconciled by an unfinished walk, persisted in a file. */
+  @VisibleForTesting
+  static class Cursor {
+    private final Path file;
+
+    Cursor(Path file) {
+      this.file = file;
+    }
+
+    /** Returns the last project reconciled, or null to start a new walk. */
+    String read() {
+      try {
+        if (Files.exists(file)) {
+          String project = new String(Files.readAllBytes(file), UTF_8).trim();
+          return project.isEmpty() ? null : project;
+        }
+      } catch (IOException e) {
+        log.warn("Cannot read reconciler cursor from {}, starting over", file, e);
+      }
+      return null;
+    }
+
+    /** Saves the last project reconciled, or null once the walk is completed. */
+    void write(String project) {
+      try {
+        Files.write(file, (project != null ? project : "").getBytes(UTF_8));
+      } catch (IOException e) {
+        log.warn("Cannot write reconciler cursor to {}", file, e);
+      }
+    }
+  }
+}
@@ -32,9 +32,11 @@ public class ReviewUpdater {
 
   @Inject private AtomicityHelper atomicityHelper;
 
+  @Inject private AutomergeExecutor executor;
+
   public void commentOnReview(String project, int number, String comment) throws Exception {
     ReviewInput reviewInput = createComment(comment);
-    applyComment(project, number, reviewInput);
+    executor.postComment(number, () -> applyComment(project, number, reviewInput));
   }
 
   private ReviewInput createComment(String comment) {
@@ -0,0 +1,131 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.gerrit.server.project.ProjectCache.illegalState;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Submittability verdicts of changes, keyed by the NoteDb meta ref SHA-1 of the change and the
+ * {@code refs/meta/config} revisions of its project and parent projects.
+ *
+ * <p>Any update to a change (vote, new patchset, topic, status...) moves its meta ref, and any
+ * update to the submit requirements or rules of a project moves its config revision, so a cached
+ * verdict can only be returned for the exact state it was computed on. Closed changes are never
+ * submittable, and are not cached.
+ */
+@Singleton
+public class SubmittabilityCache {
+  static final String CACHE_NAME = "submittable";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, Boolean.class)
+            .maximumWeight(4096)
+            .expireAfterWrite(Duration.ofMinutes(10));
+      }
+    };
+  }
+
+  private final Cache<Key, Boolean> cache;
+  private final ProjectCache projectCache;
+
+  @Inject
+  SubmittabilityCache(@Named(CACHE_NAME) Cache<Key, Boolean> cache, ProjectCache projectCache) {
+    this.cache = cache;
+    this.projectCache = projectCache;
+  }
+
+  /**
+   * Returns the cached verdict for the current state of the change, computing it with the given
+   * loader if needed. The loader is only called on open changes.
+   */
+  public boolean get(ChangeData changeData, Callable<Boolean> loader) throws ExecutionException {
+    if (!changeData.change().isNew()) {
+      return false;
+    }
+    Key key =
+        new Key(
+            changeData.project().get(),
+            changeData.getId().get(),
+            changeData.notes().getMetaId(),
+            configRevisions(changeData));
+    return cache.get(key, loader);
+  }
+
+  /** Returns the config revisions of the project of the change, then of its parents. */
+  private ImmutableList<ObjectId> configRevisions(ChangeData changeData) {
+    ProjectState projectState =
+        projectCache.get(changeData.project()).orElseThrow(illegalState(changeData.project()));
+    ImmutableList.Builder<ObjectId> revisions = ImmutableList.builder();
+    for (ProjectState p : projectState.tree()) {
+      revisions.add(p.getConfig().getRevision().orElse(ObjectId.zeroId()));
+    }
+    return revisions.build();
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  static class Key {
+    final String project;
+    final int number;
+    final ObjectId metaId;
+    final ImmutableList<ObjectId> configRevisions;
+
+    Key(String project, int number, ObjectId metaId, ImmutableList<ObjectId> configRevisions) {
+      this.project = project;
+      this.number = number;
+      this.metaId = metaId.copy();
+      this.configRevisions = configRevisions;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return number == other.number
+          && project.equals(other.project)
+          && metaId.equals(other.metaId)
+          && configRevisions.equals(other.configRevisions);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, number, metaId, configRevisions);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Readiness of the changes of a cross-repo topic, as found by its last evaluation.
+ *
+ * <p>An evaluation stops at the first change blocking the topic, so the following changes may not
+ * have been checked: their state is then null. A change found not submittable is recorded on its
+ * own, without looking up the other changes of the topic, so the changes known are the ones found
+ * by the last evaluation of the whole topic, plus the ones evaluated since.
+ */
+public class TopicReadiness {
+
+  /** A change of the topic. */
+  public static class Member {
+    public final String project;
+    public final String branch;
+    public final int number;
+    private volatile Boolean submittable;
+    private volatile Boolean mergeable;
+    private volatile Boolean blockedByUnmergedParent;
+    private volatile boolean notHandled;
+
+    Member(String project, String branch, int number) {
+      this.project = project;
+      this.branch = branch;
+      this.number = number;
+    }
+
+    public Boolean isSubmittable() {
+      return submittable;
+    }
+
+    public Boolean isMergeable() {
+      return mergeable;
+    }
+
+    public Boolean isBlockedByUnmergedParent() {
+      return blockedByUnmergedParent;
+    }
+
+    /** Returns why this change blocks the topic, or null if it does not, as far as known. */
+    public String getBlockedReason() {
+      if (notHandled) {
+        return "change " + number + " is on a project or branch not handled by the plugin";
+      }
+      if (Boolean.FALSE.equals(submittable)) {
+        return "change " + number + " is not submittable";
+      }
+      if (Boolean.FALSE.equals(mergeable)) {
+        return "change " + number + " has a git conflict";
+      }
+      if (Boolean.TRUE.equals(blockedByUnmergedParent)) {
+        return "change " + number + " depends on a non merged commit";
+      }
+      return null;
+    }
+  }
+
+  public final String topic;
+  public final Instant evaluated;
+  private final ImmutableMap<Integer, Member> members;
+
+  TopicReadiness(String topic, List<ChangeInfo> changes) {
+    this.topic = topic;
+    this.evaluated = Instant.now();
+    Map<Integer, Member> byNumber = new LinkedHashMap<>();
+    for (ChangeInfo info : changes) {
+      byNumber.putIfAbsent(info._number, new Member(info.project, info.branch, info._number));
+    }
+    this.members = ImmutableMap.copyOf(byNumber);
+  }
+
+  private TopicReadiness(String topic, ImmutableMap<Integer, Member> members) {
+    this.topic = topic;
+    this.evaluated = Instant.now();
+    this.members = members;
+  }
+
+  /**
+   * Returns the readiness of the topic with a change evaluated on its own, added if it was not
+   * known yet. The changes already known keep their state.
+   */
+  TopicReadiness withMember(String project, String branch, int number) {
+    if (members.containsKey(number)) {
+      return new TopicReadiness(topic, members);
+    }
+    return new TopicReadiness(
+        topic,
+        ImmutableMap.<Integer, Member>builder()
+            .putAll(members)
+            .put(number, new Member(project, branch, number))
+            .build());
+  }
+
+  public Collection<Member> getMembers() {
+    return members.values();
+  }
+
+  /** Returns a change of the topic, or null if it was not found by the evaluation. */
+  public Member getMember(int number) {
+    return members.get(number);
+  }
+
+  void setNotHandled(int number) {
+    Member member = members.get(number);
+    if (member != null) {
+      member.notHandled = true;
+    }
+  }
+
+  void setSubmittable(int number, boolean submittable) {
+    Member member = members.get(number);
+    if (member != null) {
+      member.submittable = submittable;
+    }
+  }
+
+  void setMergeable(int number, Boolean mergeable, boolean blockedByUnmergedParent) {
+    Member member = members.get(number);
+    if (member != null) {
+      member.mergeable = mergeable;
+      member.blockedByUnmergedParent = blockedByUnmergedParent;
+    }
+  }
+}
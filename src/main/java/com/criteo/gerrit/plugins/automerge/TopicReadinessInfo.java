@@ -0,0 +1,44 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/** Readiness of a cross-repo topic, as returned by {@link GetTopicReadiness}. */
+public class TopicReadinessInfo {
+  public String topic;
+
+  /** When the topic was last evaluated. */
+  public Timestamp evaluated;
+
+  /**
+   * Why the topic was not submitted on its last evaluation, unless the change blocking it is on a
+   * branch the caller cannot read.
+   */
+  public String blockedReason;
+
+  public List<MemberInfo> changes;
+
+  /** A change of the topic. Unset fields were not checked by the last evaluation. */
+  public static class MemberInfo {
+    public String project;
+    public String branch;
+    public int _number;
+    public Boolean submittable;
+    public Boolean mergeable;
+    public Boolean blockedByUnmergedParent;
+  }
+}
@@ -0,0 +1,400 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static com.google.common.truth.TruthJUnit.assume;
+import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allow;
+import static com.google.gerrit.entities.Permission.SUBMIT;
+
+import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.acceptance.config.GerritConfigs;
+import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.api.changes.ReviewInput;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fires concurrent pushes, votes and topic changes across several projects, and checks that every
+ * change ends up submitted exactly once, and cross-repo topics as a whole.
+ */
+@NoHttpd
+@TestPlugin(
+    name = "autosubmitter",
+    sysModule = "com.criteo.gerrit.plugins.automerge.AutomergeModule")
+public class AutomaticMergerStressTest extends LightweightPluginDaemonTest {
+  private static final Logger log = LoggerFactory.getLogger(AutomaticMergerStressTest.class);
+
+  private static final String BOT_USERS = "Bot Users";
+  private static final int PROJECTS = 3;
+  private static final int CHANGES_PER_PROJECT = 5;
+  private static final int THREADS = 8;
+  private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  @Inject RequestScopeOperations requestScopeOperations;
+  @Inject private ProjectOperations projectOperations;
+
+  private final List<Project.NameKey> projects = new ArrayList<>();
+  private AutomergeState state;
+  private ExecutorService pool;
+
+  @Before
+  public void setup() throws Exception {
+    gApi.groups().create(BOT_USERS);
+    accountCreator.create("botuser", "botuser@mycompany.com", "Bot User", "Bot User", BOT_USERS);
+    projectOperations
+        .allProjectsForUpdate()
+        .add(allow(SUBMIT).ref("refs/*").group(groupUuid(BOT_USERS)))
+        .update();
+    for (int i = 0; i < PROJECTS; i++) {
+      projects.add(projectOperations.newProject().create());
+    }
+    state = plugin.getSysInjector().getInstance(AutomergeState.class);
+    pool = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void concurrentVotesOnIndependentChanges() throws Exception {
+    long attempts = state.getSubmitAttempts();
+    List<Callable<String>> pushes = new ArrayList<>();
+    for (Project.NameKey p : projects) {
+      for (int i = 0; i < CHANGES_PER_PROJECT; i++) {
+        String file = "file" + i;
+        pushes.add(() -> pushChange(p, "refs/for/master", file));
+      }
+    }
+    List<String> changes = runConcurrently(pushes);
+
+    long start = System.nanoTime();
+    runConcurrently(changes, this::approve);
+    assertAllMergedOnce(changes, attempts);
+    logThroughput("independent changes", changes.size(), start);
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void concurrentPushesAndVotes() throws Exception {
+    long attempts = state.getSubmitAttempts();
+    List<Callable<String>> pushesAndVotes = new ArrayList<>();
+    for (Project.NameKey p : projects) {
+      for (int i = 0; i < CHANGES_PER_PROJECT; i++) {
+        String file = "file" + i;
+        pushesAndVotes.add(
+            () -> {
+              String changeId = pushChange(p, "refs/for/master", file);
+              approve(changeId);
+              return changeId;
+            });
+      }
+    }
+
+    long start = System.nanoTime();
+    List<String> changes = runConcurrently(pushesAndVotes);
+    assertAllMergedOnce(changes, attempts);
+    logThroughput("changes pushed and voted on", changes.size(), start);
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void concurrentVotesOnCrossRepoTopics() throws Exception {
+    long attempts = state.getSubmitAttempts();
+    List<Callable<String>> pushes = new ArrayList<>();
+    for (int t = 0; t < CHANGES_PER_PROJECT; t++) {
+      for (Project.NameKey p : projects) {
+        String ref = "refs/for/master%topic=crossrepo/stress-" + t;
+        String file = "file" + t;
+        pushes.add(() -> pushChange(p, ref, file));
+      }
+    }
+    List<String> pushed = runConcurrently(pushes);
+    List<List<String>> topics = new ArrayList<>();
+    for (int t = 0; t < CHANGES_PER_PROJECT; t++) {
+      topics.add(pushed.subList(t * PROJECTS, (t + 1) * PROJECTS));
+    }
+
+    // The last topic has a change that is never approved: none of its changes may be merged.
+    List<String> blockedTopic = topics.get(topics.size() - 1);
+    List<String> all = new ArrayList<>();
+    topics.subList(0, topics.size() - 1).forEach(all::addAll);
+    List<String> votes = new ArrayList<>(all);
+    votes.addAll(blockedTopic.subList(1, blockedTopic.size()));
+    Collections.shuffle(votes);
+
+    TopicMonitor monitor = new TopicMonitor(topics);
+    Future<Void> monitoring = pool.submit(asAdmin(monitor));
+    long start = System.nanoTime();
+    runConcurrently(votes, this::approve);
+    assertAllMergedOnce(all, attempts);
+    monitor.stopped = true;
+    monitoring.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+    assertThat(monitor.violations).isEmpty();
+    for (String changeId : blockedTopic) {
+      assertThat(gApi.changes().id(changeId).get().status).isEqualTo(ChangeStatus.NEW);
+    }
+    logThroughput("cross-repo changes", all.size(), start);
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void concurrentVotesOnStacks() throws Exception {
+    long attempts = state.getSubmitAttempts();
+    List<Callable<List<String>>> pushes = new ArrayList<>();
+    for (Project.NameKey p : projects) {
+      pushes.add(
+          () -> {
+            // Each push is on top of the previous one: parents are merged by cascading ref updates.
+            TestRepository<InMemoryRepository> repo = cloneProject(p, admin);
+            List<String> stack = new ArrayList<>();
+            for (int i = 0; i < CHANGES_PER_PROJECT; i++) {
+              stack.add(push(repo, "refs/for/master", "file" + i).getChangeId());
+            }
+            return stack;
+          });
+    }
+    List<String> changes = new ArrayList<>();
+    runConcurrently(pushes).forEach(changes::addAll);
+    Collections.shuffle(changes);
+
+    long start = System.nanoTime();
+    runConcurrently(changes, this::approve);
+    assertAllMergedOnce(changes, attempts);
+    logThroughput("stacked changes", changes.size(), start);
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void concurrentTopicChangesAndVotes() throws Exception {
+    long attempts = state.getSubmitAttempts();
+    List<Callable<String>> pushes = new ArrayList<>();
+    for (Project.NameKey p : projects) {
+      pushes.add(() -> pushChange(p, "refs/for/master", "file"));
+    }
+    List<String> changes = runConcurrently(pushes);
+
+    List<Callable<Void>> topicChangesAndVotes = new ArrayList<>();
+    for (String changeId : changes) {
+      topicChangesAndVotes.add(
+          () -> {
+            setTopic(changeId, "crossrepo/moving");
+            return null;
+          });
+      topicChangesAndVotes.add(
+          () -> {
+            approve(changeId);
+            return null;
+          });
+    }
+    Collections.shuffle(topicChangesAndVotes);
+
+    long start = System.nanoTime();
+    runConcurrently(topicChangesAndVotes);
+    assertAllMergedOnce(changes, attempts);
+    logThroughput("changes with a moving topic", changes.size(), start);
+  }
+
+  @Test
+  @GerritConfigs({
+    @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com"),
+    @GerritConfig(name = "automerge.executionMode", value = "VIRTUAL"),
+    @GerritConfig(name = "automerge.queryBatchWindow", value = "20 ms")
+  })
+  public void concurrentVotesWithVirtualThreadsAndBatchedQueries() throws Exception {
+    assume()
+        .withMessage("virtual threads are supported")
+        .that(plugin.getSysInjector().getInstance(AutomergeExecutor.class).runsAsBot())
+        .isTrue();
+    concurrentVotesOnStacks();
+  }
+
+  private interface ChangeTask {
+    void run(String changeId) throws Exception;
+  }
+
+  private void runConcurrently(List<String> changes, ChangeTask task) throws Exception {
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (String changeId : changes) {
+      tasks.add(
+          () -> {
+            task.run(changeId);
+            return null;
+          });
+    }
+    runConcurrently(tasks);
+  }
+
+  /** Runs all the tasks at the same time, and returns their results in order. */
+  private <T> List<T> runConcurrently(List<Callable<T>> tasks) throws Exception {
+    List<Future<T>> futures = new ArrayList<>();
+    for (Callable<T> task : tasks) {
+      futures.add(pool.submit(asAdmin(task)));
+    }
+    List<T> results = new ArrayList<>();
+    for (Future<T> f : futures) {
+      results.add(f.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    return results;
+  }
+
+  private <T> Callable<T> asAdmin(Callable<T> task) {
+    return () -> {
+      requestScopeOperations.setApiUser(admin.id());
+      return task.call();
+    };
+  }
+
+  private void approve(String changeId) throws Exception {
+    gApi.changes().id(changeId).current().review(ReviewInput.approve());
+  }
+
+  private void setTopic(String changeId, String topic) throws Exception {
+    try {
+      gApi.changes().id(changeId).topic(topic);
+    } catch (RestApiException e) {
+      // The topic of a merged change cannot be edited: it was approved, and submitted on its own.
+      if (gApi.changes().id(changeId).get().status != ChangeStatus.MERGED) {
+        throw e;
+      }
+    }
+  }
+
+  /** Pushes a change from a clone of its own, so that pushes can run concurrently. */
+  private String pushChange(Project.NameKey project, String ref, String file) throws Exception {
+    return push(cloneProject(project, admin), ref, file).getChangeId();
+  }
+
+  private PushOneCommit.Result push(
+      TestRepository<InMemoryRepository> repo, String ref, String file) throws Exception {
+    PushOneCommit.Result result =
+        pushFactory.create(admin.newIdent(), repo, "Change on " + file, file, file).to(ref);
+    result.assertOkStatus();
+    return result;
+  }
+
+  /**
+   * Waits for all the changes to be merged, as events may be processed asynchronously, then checks
+   * that the plugin attempted to submit each of them once only.
+   *
+   * @param attemptsBefore the number of submits attempted by the plugin before the changes
+   */
+  private void assertAllMergedOnce(List<String> changes, long attemptsBefore) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    for (String changeId : changes) {
+      ChangeInfo info = gApi.changes().id(changeId).get();
+      while (info.status != ChangeStatus.MERGED && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+        info = gApi.changes().id(changeId).get();
+      }
+      assertWithMessage("status of change %s", info._number)
+          .that(info.status)
+          .isEqualTo(ChangeStatus.MERGED);
+    }
+
+    // Let the evaluations still running end, as they might attempt another submit.
+    while (!(state.getPendingByBranch().isEmpty() && state.getInFlightSubmits().isEmpty())
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertWithMessage("pending evaluations").that(state.getPendingByBranch()).isEmpty();
+    assertWithMessage("submits attempted by the plugin")
+        .that(state.getSubmitAttempts() - attemptsBefore)
+        .isEqualTo(changes.size());
+  }
+
+  /**
+   * Checks, while votes are in flight, that no change of a topic is merged before all the changes
+   * of the topic are approved.
+   */
+  private class TopicMonitor implements Callable<Void> {
+    final List<List<String>> topics;
+    final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+    volatile boolean stopped;
+
+    TopicMonitor(List<List<String>> topics) {
+      this.topics = topics;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      while (!stopped) {
+        for (List<String> topic : topics) {
+          check(topic);
+        }
+        Thread.sleep(20);
+      }
+      return null;
+    }
+
+    private void check(List<String> topic) throws Exception {
+      boolean anyMerged = false;
+      for (String changeId : topic) {
+        anyMerged |= gApi.changes().id(changeId).get().status == ChangeStatus.MERGED;
+      }
+      if (!anyMerged) {
+        return;
+      }
+      // Approvals are read after the statuses: all of them were given before any merge.
+      for (String changeId : topic) {
+        ChangeInfo info = gApi.changes().id(changeId).get(EnumSet.of(ListChangesOption.LABELS));
+        if (info.labels.get("Code-Review").approved == null) {
+          violations.add("topic of change " + info._number + " merged before it was approved");
+        }
+      }
+    }
+  }
+
+  private static void logThroughput(String what, int count, long startNanos) {
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    log.info(
+        "Merged {} {} in {} ms ({} changes/s)",
+        count,
+        what,
+        elapsed,
+        String.format("%.1f", count * 1000.0 / Math.max(1, elapsed)));
+    assertThat(elapsed).isLessThan(TIMEOUT_MILLIS);
+  }
+}
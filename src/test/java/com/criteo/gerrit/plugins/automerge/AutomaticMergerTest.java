@@ -17,7 +17,10 @@ package com.criteo.gerrit.plugins.automerge;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allow;
 import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allowLabel;
+import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.block;
+import static com.google.gerrit.entities.Permission.READ;
 import static com.google.gerrit.entities.Permission.SUBMIT;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
 import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
 import com.google.gerrit.acceptance.NoHttpd;
@@ -25,15 +28,22 @@ import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.TestAccount;
 import com.google.gerrit.acceptance.TestPlugin;
 import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.acceptance.config.GerritConfigs;
 import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
 import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.api.changes.ChangeApi;
 import com.google.gerrit.extensions.api.changes.Changes;
 import com.google.gerrit.extensions.api.changes.ReviewInput;
 import com.google.gerrit.extensions.client.ChangeStatus;
 import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.server.account.externalids.ExternalIds;
+import com.google.gerrit.server.config.ConfigResource;
 import com.google.inject.Inject;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -100,6 +110,127 @@ public class AutomaticMergerTest extends LightweightPluginDaemonTest {
     assertThat(changeInfo.submitter.email).isEqualTo(botUser.email());
   }
 
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void statusShowsEvaluationsOnceFinished() throws Exception {
+    String changeId = createChange(user);
+    changesApi().id(changeId).current().review(ReviewInput.approve());
+
+    AutomergeStatusInfo status =
+        plugin.getSysInjector().getInstance(GetStatus.class).apply(new ConfigResource()).value();
+    assertThat(status.pendingByBranch).isEmpty();
+    assertThat(status.inFlightSubmits).isEmpty();
+    assertThat(status.submitAttempts).isEqualTo(1);
+    assertThat(status.blockedTopics).isEmpty();
+    assertThat(status.recentLatenciesMs).isNotEmpty();
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void topicReadinessIsKnownBeforeVotedChangeIsApproved() throws Exception {
+    PushOneCommit.Result first = createChangeAsUser("refs/for/master%topic=crossrepo/ready", user);
+    createChangeAsUser("refs/for/master%topic=crossrepo/ready", user);
+    changesApi().id(first.getChangeId()).current().review(ReviewInput.recommend());
+
+    TopicReadinessInfo readiness = topicReadiness("crossrepo/ready");
+    assertThat(readiness.changes).hasSize(2);
+    int number = first.getChange().getId().get();
+    assertThat(readiness.blockedReason).isEqualTo("change " + number + " is not submittable");
+    // Each change was evaluated on its own when pushed, and the voted one again.
+    for (TopicReadinessInfo.MemberInfo member : readiness.changes) {
+      assertThat(member.submittable).isFalse();
+      assertThat(member.mergeable).isNull();
+    }
+  }
+
+  @Test
+  @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com")
+  public void topicReadinessHidesChangesOnUnreadableBranches() throws Exception {
+    gApi.groups().create("Outsiders");
+    gApi.groups().id("Outsiders").addMembers(user.username());
+    Project.NameKey hidden = projectOperations.newProject().create();
+    projectOperations
+        .project(hidden)
+        .forUpdate()
+        .add(block(READ).ref("refs/*").group(groupUuid("Outsiders")))
+        .update();
+    TestRepository<InMemoryRepository> hiddenRepo = cloneProject(hidden, admin);
+    PushOneCommit.Result blocking =
+        pushFactory
+            .create(admin.newIdent(), hiddenRepo)
+            .to("refs/for/master%topic=crossrepo/hidden");
+    blocking.assertOkStatus();
+    PushOneCommit.Result visible =
+        createChangeAsUser("refs/for/master%topic=crossrepo/hidden", admin);
+    changesApi().id(visible.getChangeId()).current().review(ReviewInput.approve());
+
+    TopicReadinessInfo readiness = topicReadiness("crossrepo/hidden");
+    assertThat(readiness.changes).hasSize(2);
+    assertThat(readiness.blockedReason)
+        .isEqualTo("change " + blocking.getChange().getId().get() + " is not submittable");
+
+    requestScopeOperations.setApiUser(user.id());
+    readiness = topicReadiness("crossrepo/hidden");
+    assertThat(readiness.changes).hasSize(1);
+    assertThat(readiness.changes.get(0)._number).isEqualTo(visible.getChange().getId().get());
+    assertThat(readiness.blockedReason).isNull();
+  }
+
+  @Test
+  @GerritConfigs({
+    @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com"),
+    @GerritConfig(name = "automerge.excludeProject", value = "excluded-project")
+  })
+  public void crossRepoTopicWithChangeNotHandledIsNotSubmitted() throws Exception {
+    Project.NameKey excluded = projectOperations.newProject().name("excluded-project").create();
+    PushOneCommit.Result notHandled =
+        pushFactory
+            .create(admin.newIdent(), cloneProject(excluded, admin))
+            .to("refs/for/master%topic=crossrepo/excluded");
+    notHandled.assertOkStatus();
+    changesApi().id(notHandled.getChangeId()).current().review(ReviewInput.approve());
+    PushOneCommit.Result handled =
+        createChangeAsUser("refs/for/master%topic=crossrepo/excluded", admin);
+    changesApi().id(handled.getChangeId()).current().review(ReviewInput.approve());
+
+    assertThat(changesApi().id(handled.getChangeId()).get().status).isEqualTo(ChangeStatus.NEW);
+    assertThat(changesApi().id(notHandled.getChangeId()).get().status)
+        .isEqualTo(ChangeStatus.NEW);
+    assertThat(topicReadiness("crossrepo/excluded").blockedReason)
+        .isEqualTo(
+            "change "
+                + notHandled.getChange().getId().get()
+                + " is on a project or branch not handled by the plugin");
+  }
+
+  @Test
+  @GerritConfigs({
+    @GerritConfig(name = "automerge.botEmail", value = "botuser@mycompany.com"),
+    @GerritConfig(name = "automerge.leaseDirectory", value = "leases")
+  })
+  public void topicReadinessIsOnlyKnownByTheLeaseHolder() throws Exception {
+    BranchLeases otherNode =
+        new BranchLeases(
+            sitePaths.site_path.resolve("leases"),
+            "other-node",
+            TimeUnit.MINUTES.toMillis(1),
+            System::currentTimeMillis);
+    assertThat(otherNode.tryAcquire(BranchLeases.topicKey("crossrepo/elsewhere"))).isTrue();
+
+    ResourceNotFoundException e =
+        assertThrows(ResourceNotFoundException.class, () -> topicReadiness("crossrepo/elsewhere"));
+    assertThat(e).hasMessageThat().contains("evaluated by another node");
+  }
+
+  private TopicReadinessInfo topicReadiness(String topic) throws Exception {
+    return plugin
+        .getSysInjector()
+        .getInstance(GetTopicReadiness.class)
+        .setTopic(topic)
+        .apply(new ConfigResource())
+        .value();
+  }
+
   private Changes changesApi() {
     return gApi.changes();
   }
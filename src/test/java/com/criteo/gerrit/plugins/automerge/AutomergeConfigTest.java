@@ -15,10 +15,14 @@
 package com.criteo.gerrit.plugins.automerge;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.gerrit.server.config.SitePaths;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.Config;
 import org.junit.Test;
 
@@ -52,4 +56,118 @@ public class AutomergeConfigTest {
     assertEquals(amconf.getBotEmail(), "Foo@bar.com");
     assertEquals(amconf.getTopicPrefix(), "fake_topic_prefix");
   }
+
+  @Test
+  public void testTraceProjects() throws IOException {
+    final Config conf = new Config();
+    final SitePaths paths = new SitePaths(Paths.get("."));
+
+    conf.setStringList(
+        AutomergeConfig.AUTOMERGE_SECTION,
+        null,
+        AutomergeConfig.TRACE_PROJECT_KEY,
+        Arrays.asList("foo", "bar/baz"));
+
+    final AutomergeConfig amconf = new AutomergeConfig(conf, paths);
+    assertTrue(amconf.isTraceEnabled("foo"));
+    assertTrue(amconf.isTraceEnabled("bar/baz"));
+    assertFalse(amconf.isTraceEnabled("bar"));
+  }
+
+  @Test
+  public void testReconcilerValues() throws IOException {
+    final Config conf = new Config();
+    final SitePaths paths = new SitePaths(Paths.get("."));
+
+    AutomergeConfig amconf = new AutomergeConfig(conf, paths);
+    assertEquals(0, amconf.getReconcileInterval());
+
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION, null, AutomergeConfig.RECONCILE_INTERVAL_KEY, "1 hour");
+    conf.setInt(
+        AutomergeConfig.AUTOMERGE_SECTION, null, AutomergeConfig.RECONCILE_MAX_LOAD_KEY, 250);
+
+    amconf = new AutomergeConfig(conf, paths);
+    assertEquals(TimeUnit.HOURS.toMillis(1), amconf.getReconcileInterval());
+    assertEquals(100, amconf.getReconcileMaxLoad());
+  }
+
+  @Test
+  public void testReconcilerIsEnabledWithLeases() throws IOException {
+    final Config conf = new Config();
+    final SitePaths paths = new SitePaths(Paths.get("."));
+
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION, null, AutomergeConfig.LEASE_DIRECTORY_KEY, "leases");
+    AutomergeConfig amconf = new AutomergeConfig(conf, paths);
+    assertEquals(TimeUnit.MINUTES.toMillis(5), amconf.getReconcileInterval());
+
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION, null, AutomergeConfig.RECONCILE_INTERVAL_KEY, "0");
+    amconf = new AutomergeConfig(conf, paths);
+    assertEquals(TimeUnit.MINUTES.toMillis(5), amconf.getReconcileInterval());
+
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION, null, AutomergeConfig.RECONCILE_INTERVAL_KEY, "1 hour");
+    amconf = new AutomergeConfig(conf, paths);
+    assertEquals(TimeUnit.HOURS.toMillis(1), amconf.getReconcileInterval());
+  }
+
+  @Test
+  public void testAtomicTopicPrefixes() throws IOException {
+    final Config conf = new Config();
+    final SitePaths paths = new SitePaths(Paths.get("."));
+
+    AutomergeConfig amconf = new AutomergeConfig(conf, paths);
+    assertTrue(amconf.isAtomicTopic("crossrepo/foo"));
+    assertFalse(amconf.isAtomicTopic("foo"));
+    assertFalse(amconf.isAtomicTopic(null));
+
+    conf.setStringList(
+        AutomergeConfig.AUTOMERGE_SECTION,
+        null,
+        AutomergeConfig.TOPIC_PREFIX_KEY,
+        Arrays.asList("atomic/", "release/"));
+
+    amconf = new AutomergeConfig(conf, paths);
+    assertEquals("atomic/", amconf.getTopicPrefix());
+    assertTrue(amconf.isAtomicTopic("atomic/foo"));
+    assertTrue(amconf.isAtomicTopic("release/foo"));
+    assertFalse(amconf.isAtomicTopic("crossrepo/foo"));
+  }
+
+  @Test
+  public void testIncludeExcludePatterns() throws IOException {
+    final Config conf = new Config();
+    final SitePaths paths = new SitePaths(Paths.get("."));
+
+    AutomergeConfig amconf = new AutomergeConfig(conf, paths);
+    assertTrue(amconf.isHandled("any", "master"));
+
+    conf.setStringList(
+        AutomergeConfig.AUTOMERGE_SECTION,
+        null,
+        AutomergeConfig.INCLUDE_PROJECT_KEY,
+        Arrays.asList("team/*", "tools"));
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION,
+        null,
+        AutomergeConfig.EXCLUDE_PROJECT_KEY,
+        "team/legacy");
+    conf.setString(
+        AutomergeConfig.AUTOMERGE_SECTION,
+        null,
+        AutomergeConfig.EXCLUDE_BRANCH_KEY,
+        "^refs/heads/sandbox/.*");
+
+    amconf = new AutomergeConfig(conf, paths);
+    assertTrue(amconf.isHandled("team/foo", "master"));
+    assertTrue(amconf.isHandled("tools", "refs/heads/stable"));
+    assertFalse(amconf.isHandled("team/legacy", "master"));
+    assertFalse(amconf.isHandled("other", "master"));
+    assertFalse(amconf.isHandled("team/foo", "sandbox/bar"));
+    assertFalse(amconf.isHandled("team/foo", "refs/heads/sandbox/bar"));
+    assertTrue(amconf.isProjectHandled("team/foo"));
+    assertFalse(amconf.isProjectHandled("team/legacy"));
+  }
 }
@@ -0,0 +1,187 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class AutomergeExecutorTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final ExecutorService pool = Executors.newCachedThreadPool();
+  private final AtomicInteger openContexts = new AtomicInteger();
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger maxRunning = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private AutomergeExecutor executor(
+      ExecutorService executor, int maxEvaluations, int maxComments) {
+    return new AutomergeExecutor(
+        executor,
+        maxEvaluations,
+        maxComments,
+        () -> {
+          openContexts.incrementAndGet();
+          return openContexts::decrementAndGet;
+        });
+  }
+
+  @Test
+  public void testDirectModeRunsOnCallingThread() throws Exception {
+    AutomergeExecutor direct = executor(null, 1, 1);
+    Thread caller = Thread.currentThread();
+    List<Thread> threads = new ArrayList<>();
+
+    assertThat(direct.evaluate(() -> threads.add(Thread.currentThread()))).isTrue();
+    direct.postComment(1, () -> threads.add(Thread.currentThread()));
+
+    assertThat(threads).containsExactly(caller, caller);
+    assertThat(direct.runsAsBot()).isFalse();
+  }
+
+  @Test
+  public void testEvaluationsAreBoundedAndRunAsBot() throws Exception {
+    AutomergeExecutor executor = executor(pool, 2, 1);
+    CountDownLatch done = new CountDownLatch(20);
+    List<Integer> contexts = Collections.synchronizedList(new ArrayList<>());
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(
+              executor.evaluate(
+                  () -> {
+                    contexts.add(openContexts.get());
+                    busy();
+                    done.countDown();
+                  }))
+          .isTrue();
+    }
+
+    assertThat(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(maxRunning.get()).isAtMost(2);
+    assertThat(contexts).doesNotContain(0);
+  }
+
+  @Test
+  public void testCommentsAreBounded() throws Exception {
+    AutomergeExecutor executor = executor(pool, 1, 3);
+    CountDownLatch done = new CountDownLatch(20);
+
+    for (int i = 0; i < 20; i++) {
+      executor.postComment(
+          i,
+          () -> {
+            busy();
+            done.countDown();
+          });
+    }
+
+    assertThat(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(maxRunning.get()).isAtMost(3);
+  }
+
+  @Test
+  public void testCommentsOnAChangeArePostedInOrder() throws Exception {
+    AutomergeExecutor executor = executor(pool, 1, 4);
+    List<Integer> posted = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> postedOnOther = Collections.synchronizedList(new ArrayList<>());
+    // The first comment on change 1 fails.
+    CountDownLatch done = new CountDownLatch(99);
+
+    for (int i = 0; i < 50; i++) {
+      int comment = i;
+      executor.postComment(
+          1,
+          () -> {
+            if (comment == 0) {
+              throw new Exception("failures do not break the order");
+            }
+            busy();
+            posted.add(comment);
+            done.countDown();
+          });
+      executor.postComment(
+          2,
+          () -> {
+            postedOnOther.add(comment);
+            done.countDown();
+          });
+    }
+
+    assertThat(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 1; i < 50; i++) {
+      expected.add(i);
+    }
+    assertThat(posted).containsExactlyElementsIn(expected).inOrder();
+    assertThat(postedOnOther).hasSize(50);
+    assertThat(postedOnOther).isInOrder();
+  }
+
+  @Test
+  public void testStopWaitsForRunningEvaluations() throws Exception {
+    AutomergeExecutor executor = executor(pool, 4, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicInteger finished = new AtomicInteger();
+
+    executor.evaluate(
+        () -> {
+          started.countDown();
+          busy();
+          finished.incrementAndGet();
+        });
+    assertThat(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    executor.stop();
+
+    assertThat(finished.get()).isEqualTo(1);
+    assertThat(pool.isTerminated()).isTrue();
+  }
+
+  @Test
+  public void testTasksAreDroppedOnceStopped() throws Exception {
+    AutomergeExecutor executor = executor(pool, 1, 1);
+    executor.stop();
+
+    AtomicInteger ran = new AtomicInteger();
+    assertThat(executor.evaluate(ran::incrementAndGet)).isFalse();
+    executor.postComment(1, ran::incrementAndGet);
+    assertThat(ran.get()).isEqualTo(0);
+  }
+
+  /** Works for a while, keeping track of how many tasks are working at the same time. */
+  private void busy() {
+    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+    try {
+      Thread.sleep(10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      running.decrementAndGet();
+    }
+  }
+}
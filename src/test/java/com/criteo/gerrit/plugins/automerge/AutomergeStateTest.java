@@ -0,0 +1,167 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AutomergeStateTest {
+  private static final String BRANCH = AutomergeState.branchKey("project", "master");
+
+  private final AutomergeState state = new AutomergeState();
+
+  @Test
+  public void testPendingWorkIsCountedPerBranch() {
+    state.workStarted(BRANCH);
+    state.workStarted(BRANCH);
+    assertThat(state.getPendingByBranch()).containsExactly(BRANCH, 2);
+
+    state.workFinished(BRANCH);
+    assertThat(state.getPendingByBranch()).containsExactly(BRANCH, 1);
+    state.workFinished(BRANCH);
+    assertThat(state.getPendingByBranch()).isEmpty();
+  }
+
+  @Test
+  public void testInFlightSubmits() {
+    state.submitStarted(2);
+    state.submitStarted(1);
+    assertThat(state.getInFlightSubmits()).containsExactly(1, 2).inOrder();
+
+    state.submitFinished(1);
+    assertThat(state.getInFlightSubmits()).containsExactly(2);
+    assertThat(state.getSubmitAttempts()).isEqualTo(2);
+  }
+
+  @Test
+  public void testBlockedTopicIsClearedWhenSubmitted() {
+    state.topicEvaluated("topic", ImmutableList.of());
+    state.topicBlocked("topic", "change 1 is not submittable");
+    assertThat(state.getBlockedTopics())
+        .isEqualTo(ImmutableMap.of("topic", "change 1 is not submittable"));
+
+    state.topicSubmitted("topic");
+    assertThat(state.getBlockedTopics()).isEmpty();
+  }
+
+  @Test
+  public void testBlockedTopicIsClearedWhenEvaluatedAgain() {
+    state.topicBlocked("topic", "change 1 is not submittable");
+    state.topicEvaluated("topic", ImmutableList.of());
+    assertThat(state.getBlockedTopics()).isEmpty();
+  }
+
+  @Test
+  public void testTopicMemberIsEvaluatedOnItsOwn() {
+    TopicReadiness readiness = state.topicMemberEvaluated("topic", change(1));
+    readiness.setSubmittable(1, false);
+    state.topicMemberEvaluated("topic", change(2)).setSubmittable(2, false);
+
+    readiness = state.getTopicReadiness("topic");
+    assertThat(readiness.getMembers()).hasSize(2);
+    assertThat(readiness.getMember(1).isSubmittable()).isFalse();
+    assertThat(readiness.getMember(2).isSubmittable()).isFalse();
+  }
+
+  @Test
+  public void testTopicMemberEvaluationKeepsOtherMembers() {
+    state.topicEvaluated("topic", ImmutableList.of(changeInfo(1), changeInfo(2)));
+    state.getTopicReadiness("topic").setSubmittable(2, true);
+    state.topicBlocked("topic", "change 2 has a git conflict");
+
+    state.topicMemberEvaluated("topic", change(1)).setSubmittable(1, false);
+    TopicReadiness readiness = state.getTopicReadiness("topic");
+    assertThat(readiness.getMembers()).hasSize(2);
+    assertThat(readiness.getMember(1).isSubmittable()).isFalse();
+    assertThat(readiness.getMember(2).isSubmittable()).isTrue();
+    assertThat(state.getBlockedTopics()).isEmpty();
+  }
+
+  @Test
+  public void testBlockedTopicsAreBounded() {
+    for (int i = 0; i < 5000; i++) {
+      state.topicBlocked("topic-" + i, "change " + i + " is not submittable");
+    }
+    assertThat(state.getBlockedTopics().size()).isAtMost(1000);
+  }
+
+  @Test
+  public void testRecentLatenciesBeforeTheRingIsFull() {
+    for (int i = 1; i <= 3; i++) {
+      state.evaluationFinished(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertThat(state.getRecentLatencies()).containsExactly(1L, 2L, 3L).inOrder();
+  }
+
+  @Test
+  public void testRecentLatenciesKeepTheLastHundred() {
+    for (int i = 1; i <= 150; i++) {
+      state.evaluationFinished(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    ImmutableList<Long> latencies = state.getRecentLatencies();
+    assertThat(latencies).hasSize(100);
+    assertThat(latencies.get(0)).isEqualTo(51);
+    assertThat(latencies.get(99)).isEqualTo(150);
+  }
+
+  @Test
+  public void testNewerPatchSetsAreNotSuperseded() {
+    assertFalse(state.isSupersededPatchSet(1, 1));
+    assertFalse(state.isSupersededPatchSet(1, 1));
+    assertFalse(state.isSupersededPatchSet(1, 2));
+    assertFalse(state.isSupersededPatchSet(1, 3));
+  }
+
+  @Test
+  public void testOlderPatchSetIsSuperseded() {
+    assertFalse(state.isSupersededPatchSet(1, 3));
+    assertTrue(state.isSupersededPatchSet(1, 2));
+    assertTrue(state.isSupersededPatchSet(1, 1));
+    // An event about an older patchset does not lower the latest one.
+    assertFalse(state.isSupersededPatchSet(1, 3));
+  }
+
+  @Test
+  public void testUnknownPatchSetIsNeverSuperseded() {
+    assertFalse(state.isSupersededPatchSet(1, 2));
+    assertFalse(state.isSupersededPatchSet(1, 0));
+  }
+
+  @Test
+  public void testPatchSetsAreTrackedPerChange() {
+    assertFalse(state.isSupersededPatchSet(1, 5));
+    assertFalse(state.isSupersededPatchSet(2, 1));
+    assertTrue(state.isSupersededPatchSet(1, 4));
+  }
+
+  private static ChangeInfo changeInfo(int number) {
+    ChangeInfo info = new ChangeInfo();
+    info.project = "project";
+    info.branch = "master";
+    info._number = number;
+    return info;
+  }
+
+  private static Change change(int number) {
+    return Change.from(changeInfo(number));
+  }
+}
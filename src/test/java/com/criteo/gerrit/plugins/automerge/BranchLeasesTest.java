@@ -0,0 +1,152 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BranchLeasesTest {
+  private static final long DURATION = 60_000;
+  private static final String BRANCH = AutomergeState.branchKey("project", "master");
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1_000_000);
+  private Path shared;
+  private BranchLeases node1;
+  private BranchLeases node2;
+
+  @Before
+  public void setUp() throws Exception {
+    shared = tmp.newFolder("leases").toPath();
+    node1 = new BranchLeases(shared, "node1", DURATION, now::get);
+    node2 = new BranchLeases(shared, "node2", DURATION, now::get);
+  }
+
+  @Test
+  public void testOnlyOneNodeHoldsALease() {
+    assertTrue(node1.tryAcquire(BRANCH));
+    assertFalse(node2.tryAcquire(BRANCH));
+    assertTrue(node1.tryAcquire(BRANCH));
+  }
+
+  @Test
+  public void testLeasesAreIndependent() {
+    assertTrue(node1.tryAcquire(BRANCH));
+    assertTrue(node2.tryAcquire(AutomergeState.branchKey("project", "stable")));
+    assertTrue(node2.tryAcquire(BranchLeases.topicKey("crossrepo/foo")));
+  }
+
+  @Test
+  public void testExpiredLeaseIsTakenOver() {
+    assertTrue(node1.tryAcquire(BRANCH));
+    now.addAndGet(DURATION + 1);
+    assertTrue(node2.tryAcquire(BRANCH));
+    assertFalse(node1.tryAcquire(BRANCH));
+  }
+
+  @Test
+  public void testLeaseIsRenewedByItsOwner() {
+    assertTrue(node1.tryAcquire(BRANCH));
+    now.addAndGet(DURATION * 3 / 4);
+    assertTrue(node1.tryAcquire(BRANCH));
+    now.addAndGet(DURATION * 3 / 4);
+    assertFalse(node2.tryAcquire(BRANCH));
+  }
+
+  @Test
+  public void testLeaseHeldElsewhereIsSeenWithoutAcquiringIt() {
+    assertFalse(node2.isHeldElsewhere(BRANCH));
+    assertTrue(node1.tryAcquire(BRANCH));
+    assertTrue(node2.isHeldElsewhere(BRANCH));
+    assertFalse(node1.isHeldElsewhere(BRANCH));
+    now.addAndGet(DURATION + 1);
+    assertFalse(node2.isHeldElsewhere(BRANCH));
+  }
+
+  @Test
+  public void testAllLeasesGrantedWithoutDirectory() {
+    BranchLeases single = new BranchLeases(null, "node1", DURATION, now::get);
+    assertTrue(single.tryAcquire(BRANCH));
+    assertTrue(node2.tryAcquire(BRANCH));
+    assertFalse(single.isShared());
+    assertFalse(single.isHeldElsewhere(BRANCH));
+  }
+
+  @Test
+  public void testExpiredLeaseIsTakenOverByOneNodeOnly() throws Exception {
+    BranchLeases node3 = new BranchLeases(shared, "node3", DURATION, now::get);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(node3.tryAcquire(BranchLeases.topicKey("topic-" + i)));
+    }
+    now.addAndGet(DURATION + 1);
+
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      for (int i = 0; i < 100; i++) {
+        String key = BranchLeases.topicKey("topic-" + i);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Future<Boolean> acquired1 =
+            pool.submit(
+                () -> {
+                  barrier.await();
+                  return node1.tryAcquire(key);
+                });
+        Future<Boolean> acquired2 =
+            pool.submit(
+                () -> {
+                  barrier.await();
+                  return node2.tryAcquire(key);
+                });
+        assertNotEquals("owners of " + key, acquired1.get(), acquired2.get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLongExpiredLeasesAreDeleted() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertTrue(node1.tryAcquire(BranchLeases.topicKey("topic-" + i)));
+    }
+    assertEquals(10, countLeases());
+
+    now.addAndGet(DURATION * 3);
+    assertTrue(node2.tryAcquire(BRANCH));
+    assertEquals(1, countLeases());
+  }
+
+  private long countLeases() throws Exception {
+    try (Stream<Path> files = Files.list(shared)) {
+      return files.filter(f -> f.toString().endsWith(".lease")).count();
+    }
+  }
+}
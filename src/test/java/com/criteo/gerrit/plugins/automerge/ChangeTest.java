@@ -0,0 +1,105 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.data.PatchSetAttribute;
+import java.util.Collections;
+import org.junit.Test;
+
+public class ChangeTest {
+
+  @Test
+  public void testNewChangeIsSubmitCandidate() {
+    assertTrue(Change.from(changeInfo(ChangeStatus.NEW)).isSubmitCandidate());
+  }
+
+  @Test
+  public void testChangeWithUnknownStatusIsSubmitCandidate() {
+    assertTrue(Change.from(changeInfo(null)).isSubmitCandidate());
+  }
+
+  @Test
+  public void testClosedChangeIsNotSubmitCandidate() {
+    assertFalse(Change.from(changeInfo(ChangeStatus.MERGED)).isSubmitCandidate());
+    assertFalse(Change.from(changeInfo(ChangeStatus.ABANDONED)).isSubmitCandidate());
+  }
+
+  @Test
+  public void testWorkInProgressChangeIsNotSubmitCandidate() {
+    ChangeInfo info = changeInfo(ChangeStatus.NEW);
+    info.workInProgress = true;
+    assertFalse(Change.from(info).isSubmitCandidate());
+  }
+
+  @Test
+  public void testPrivateChangeIsNotSubmitCandidate() {
+    ChangeInfo info = changeInfo(ChangeStatus.NEW);
+    info.isPrivate = true;
+    assertFalse(Change.from(info).isSubmitCandidate());
+  }
+
+  @Test
+  public void testPatchSetOfChangeInfo() {
+    ChangeInfo info = changeInfo(ChangeStatus.NEW);
+    assertEquals(0, Change.from(info).patchSet);
+
+    RevisionInfo revision = new RevisionInfo();
+    revision._number = 3;
+    info.currentRevision = "deadbeef";
+    info.revisions = Collections.singletonMap("deadbeef", revision);
+    assertEquals(3, Change.from(info).patchSet);
+  }
+
+  @Test
+  public void testChangeAttribute() {
+    ChangeAttribute attribute = new ChangeAttribute();
+    attribute.project = "project";
+    attribute.branch = "master";
+    attribute.number = 1;
+    attribute.status = com.google.gerrit.entities.Change.Status.NEW;
+    attribute.wip = true;
+    PatchSetAttribute current = new PatchSetAttribute();
+    current.number = 2;
+    attribute.currentPatchSet = current;
+    PatchSetAttribute previous = new PatchSetAttribute();
+    previous.number = 1;
+
+    Change change = Change.from(attribute);
+    assertEquals(2, change.patchSet);
+    assertFalse(change.isSubmitCandidate());
+    assertEquals(1, Change.from(attribute, previous).patchSet);
+    assertEquals(0, Change.from(attribute, null).patchSet);
+
+    attribute.wip = null;
+    assertTrue(Change.from(attribute).isSubmitCandidate());
+  }
+
+  private static ChangeInfo changeInfo(ChangeStatus status) {
+    ChangeInfo info = new ChangeInfo();
+    info.project = "project";
+    info.branch = "master";
+    info._number = 1;
+    info.status = status;
+    return info;
+  }
+}
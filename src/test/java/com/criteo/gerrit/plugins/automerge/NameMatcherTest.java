@@ -0,0 +1,52 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class NameMatcherTest {
+
+  @Test
+  public void testPatterns() {
+    NameMatcher matcher =
+        NameMatcher.forPatterns(Arrays.asList("exact", "team/*", "^release-[0-9]+", "^.*-tmp"));
+
+    assertTrue(matcher.matches("exact"));
+    assertFalse(matcher.matches("exactly"));
+    assertTrue(matcher.matches("team/"));
+    assertTrue(matcher.matches("team/foo/bar"));
+    assertFalse(matcher.matches("teams/foo"));
+    assertTrue(matcher.matches("release-12"));
+    assertFalse(matcher.matches("release-12b"));
+    assertTrue(matcher.matches("foo-tmp"));
+    assertFalse(matcher.matches(null));
+  }
+
+  @Test
+  public void testPrefixes() {
+    NameMatcher matcher = NameMatcher.forPrefixes(Arrays.asList("crossrepo/", "cross/", "x"));
+
+    assertTrue(matcher.matches("crossrepo/foo"));
+    assertTrue(matcher.matches("cross/foo"));
+    assertTrue(matcher.matches("xyz"));
+    assertFalse(matcher.matches("cross"));
+    assertFalse(matcher.matches("crossrepo"));
+    assertFalse(matcher.matches(""));
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.criteo.gerrit.plugins.automerge.QueryBatcher.Kind;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.api.changes.Changes;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Test;
+
+public class QueryBatcherTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final FakeChanges changes = new FakeChanges();
+  private final GerritApi api =
+      new GerritApi.NotImplemented() {
+        @Override
+        public Changes changes() {
+          return changes;
+        }
+      };
+  private final ExecutorService pool = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void testTopicQuery() {
+    assertEquals(
+        "status:open AND (topic:\"crossrepo/a\" OR topic:\"crossrepo/\\\"b\\\"\")",
+        QueryBatcher.query(Kind.TOPIC, Arrays.asList("crossrepo/a", "crossrepo/\"b\"")));
+  }
+
+  @Test
+  public void testBranchQuery() {
+    assertEquals(
+        "is:submittable AND ((project:\"foo\" AND branch:\"refs/heads/master\")"
+            + " OR (project:\"bar/baz\" AND branch:\"refs/heads/stable-1.0\"))",
+        QueryBatcher.query(
+            Kind.BRANCH,
+            Arrays.asList(
+                AutomergeState.branchKey("foo", "master"),
+                AutomergeState.branchKey("bar/baz", "stable-1.0"))));
+  }
+
+  @Test
+  public void testLookupsAreNotBatchedWithoutWindow() throws Exception {
+    changes.add(change(1, "foo", "master", "a"));
+    QueryBatcher batcher = new QueryBatcher(api, 0, 10);
+
+    assertThat(numbers(batcher.openChangesOfTopic("a"))).containsExactly(1);
+    assertThat(batcher.openChangesOfTopic("b")).isEmpty();
+    assertThat(changes.queries).hasSize(2);
+  }
+
+  @Test
+  public void testConcurrentLookupsAreBatchedWithinWindow() throws Exception {
+    changes.add(change(1, "foo", "master", "a"));
+    changes.add(change(2, "bar", "master", "a"));
+    changes.add(change(3, "foo", "master", "b"));
+    QueryBatcher batcher = new QueryBatcher(api, TimeUnit.SECONDS.toMillis(1), 10);
+
+    List<List<ChangeInfo>> results =
+        concurrently(batcher::openChangesOfTopic, Arrays.asList("a", "b", "c"));
+
+    assertThat(numbers(results.get(0))).containsExactly(1, 2);
+    assertThat(numbers(results.get(1))).containsExactly(3);
+    assertThat(results.get(2)).isEmpty();
+    assertThat(changes.queries).hasSize(1);
+  }
+
+  @Test
+  public void testBranchLookupsAreRoutedPerBranch() throws Exception {
+    changes.add(change(1, "foo", "master", null));
+    changes.add(change(2, "foo", "stable", null));
+    changes.add(change(3, "bar", "master", null));
+    QueryBatcher batcher = new QueryBatcher(api, TimeUnit.SECONDS.toMillis(1), 10);
+
+    List<List<ChangeInfo>> results =
+        concurrently(
+            key -> batcher.submittableChangesOfBranch("foo", key),
+            Arrays.asList("master", "refs/heads/stable", "other"));
+
+    assertThat(numbers(results.get(0))).containsExactly(1);
+    assertThat(numbers(results.get(1))).containsExactly(2);
+    assertThat(results.get(2)).isEmpty();
+    assertThat(changes.queries).hasSize(1);
+  }
+
+  @Test
+  public void testFullBatchIsRunBeforeEndOfWindow() throws Exception {
+    changes.add(change(1, "foo", "master", "a"));
+    changes.add(change(2, "foo", "master", "b"));
+    QueryBatcher batcher = new QueryBatcher(api, TimeUnit.HOURS.toMillis(1), 2);
+
+    List<List<ChangeInfo>> results =
+        concurrently(batcher::openChangesOfTopic, Arrays.asList("a", "b"));
+
+    assertThat(numbers(results.get(0))).containsExactly(1);
+    assertThat(numbers(results.get(1))).containsExactly(2);
+    assertThat(changes.queries).hasSize(1);
+  }
+
+  @Test
+  public void testFailureIsReportedToAllLookups() throws Exception {
+    changes.failure = new RestApiException("index is down");
+    QueryBatcher batcher = new QueryBatcher(api, TimeUnit.SECONDS.toMillis(1), 10);
+
+    ExecutionException e =
+        assertThrows(
+            ExecutionException.class,
+            () -> concurrently(batcher::openChangesOfTopic, Arrays.asList("a", "b")));
+    assertThat(e).hasCauseThat().isSameInstanceAs(changes.failure);
+    assertThat(changes.queries).hasSize(1);
+  }
+
+  @Test
+  public void testTruncatedBatchIsQueriedPerKey() throws Exception {
+    changes.add(change(1, "foo", "master", "a"));
+    changes.add(change(2, "bar", "master", "a"));
+    changes.add(change(3, "foo", "master", "b"));
+    changes.limit = 2;
+    QueryBatcher batcher = new QueryBatcher(api, TimeUnit.SECONDS.toMillis(1), 10);
+
+    List<List<ChangeInfo>> results =
+        concurrently(batcher::openChangesOfTopic, Arrays.asList("a", "b"));
+
+    assertThat(numbers(results.get(0))).containsExactly(1, 2);
+    assertThat(numbers(results.get(1))).containsExactly(3);
+    assertThat(changes.queries).hasSize(3);
+  }
+
+  @Test
+  public void testTruncatedTopicFails() throws Exception {
+    changes.add(change(1, "foo", "master", "a"));
+    changes.add(change(2, "bar", "master", "a"));
+    changes.limit = 1;
+    QueryBatcher batcher = new QueryBatcher(api, 0, 10);
+
+    assertThrows(RestApiException.class, () -> batcher.openChangesOfTopic("a"));
+  }
+
+  @Test
+  public void testTruncatedBranchReturnsFirstChanges() throws Exception {
+    changes.add(change(1, "foo", "master", null));
+    changes.add(change(2, "foo", "master", null));
+    changes.limit = 1;
+    QueryBatcher batcher = new QueryBatcher(api, 0, 10);
+
+    assertThat(numbers(batcher.submittableChangesOfBranch("foo", "master"))).containsExactly(1);
+  }
+
+  private interface Lookup {
+    List<ChangeInfo> run(String key) throws Exception;
+  }
+
+  /** Runs the lookups of all the keys at the same time, and returns their results in order. */
+  private List<List<ChangeInfo>> concurrently(Lookup lookup, List<String> keys) throws Exception {
+    CyclicBarrier barrier = new CyclicBarrier(keys.size());
+    List<Future<List<ChangeInfo>>> futures = new ArrayList<>();
+    for (String key : keys) {
+      futures.add(
+          pool.submit(
+              () -> {
+                barrier.await();
+                return lookup.run(key);
+              }));
+    }
+    List<List<ChangeInfo>> results = new ArrayList<>();
+    for (Future<List<ChangeInfo>> f : futures) {
+      results.add(f.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    return results;
+  }
+
+  private static List<Integer> numbers(List<ChangeInfo> changes) {
+    return changes.stream().map(c -> c._number).collect(Collectors.toList());
+  }
+
+  private static ChangeInfo change(int number, String project, String branch, String topic) {
+    ChangeInfo info = new ChangeInfo();
+    info._number = number;
+    info.project = project;
+    info.branch = branch;
+    info.topic = topic;
+    return info;
+  }
+
+  /** An index answering the queries built by {@link QueryBatcher#query}. */
+  private static class FakeChanges extends Changes.NotImplemented {
+    final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    final List<ChangeInfo> index = new ArrayList<>();
+    volatile RestApiException failure;
+    volatile int limit = Integer.MAX_VALUE;
+
+    void add(ChangeInfo info) {
+      index.add(info);
+    }
+
+    @Override
+    public QueryRequest query(String query) {
+      return new QueryRequest() {
+        @Override
+        public List<ChangeInfo> get() throws RestApiException {
+          queries.add(getQuery());
+          if (failure != null) {
+            throw failure;
+          }
+          List<ChangeInfo> result = new ArrayList<>();
+          for (ChangeInfo info : index) {
+            if (matches(getQuery(), info)) {
+              if (result.size() == limit) {
+                ChangeInfo last = result.get(limit - 1);
+                ChangeInfo truncated = change(last._number, last.project, last.branch, last.topic);
+                truncated._moreChanges = true;
+                result.set(limit - 1, truncated);
+                break;
+              }
+              result.add(info);
+            }
+          }
+          return result;
+        }
+      }.withQuery(query);
+    }
+
+    private static boolean matches(String query, ChangeInfo info) {
+      if (query.startsWith("status:open")) {
+        return info.topic != null && query.contains("topic:\"" + info.topic + "\"");
+      }
+      return query.contains(
+          "(project:\"" + info.project + "\" AND branch:\"refs/heads/" + info.branch + "\")");
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.entities.Project;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReconcilerTest {
+  private static final ImmutableSortedSet<Project.NameKey> PROJECTS =
+      ImmutableSortedSet.of(Project.nameKey("a"), Project.nameKey("b"), Project.nameKey("c"));
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testWalkStartsFromFirstProjectWithoutCursor() {
+    assertThat(Reconciler.remainingProjects(PROJECTS, null)).isEqualTo(PROJECTS);
+  }
+
+  @Test
+  public void testWalkResumesAfterCursor() {
+    assertThat(Reconciler.remainingProjects(PROJECTS, "a"))
+        .containsExactly(Project.nameKey("b"), Project.nameKey("c"))
+        .inOrder();
+    assertThat(Reconciler.remainingProjects(PROJECTS, "c")).isEmpty();
+  }
+
+  @Test
+  public void testWalkResumesAfterDeletedCursorProject() {
+    assertThat(Reconciler.remainingProjects(PROJECTS, "aa"))
+        .containsExactly(Project.nameKey("b"), Project.nameKey("c"))
+        .inOrder();
+  }
+
+  @Test
+  public void testCursorIsPersisted() throws Exception {
+    Path file = tmp.getRoot().toPath().resolve("reconciler.cursor");
+    Reconciler.Cursor cursor = new Reconciler.Cursor(file);
+    assertThat(cursor.read()).isNull();
+
+    cursor.write("b");
+    assertThat(new Reconciler.Cursor(file).read()).isEqualTo("b");
+
+    cursor.write(null);
+    assertThat(Files.exists(file)).isTrue();
+    assertThat(new Reconciler.Cursor(file).read()).isNull();
+  }
+
+  @Test
+  public void testWalkIsSplitInBatches() throws Exception {
+    Reconciler.Cursor cursor = new Reconciler.Cursor(tmp.newFile("reconciler.cursor").toPath());
+    List<String> reconciled = new ArrayList<>();
+
+    assertThat(Reconciler.walk(PROJECTS, cursor, 2, reconciled::add)).isFalse();
+    assertThat(reconciled).containsExactly("a", "b").inOrder();
+    assertThat(cursor.read()).isEqualTo("b");
+
+    assertThat(Reconciler.walk(PROJECTS, cursor, 2, reconciled::add)).isTrue();
+    assertThat(reconciled).containsExactly("a", "b", "c").inOrder();
+    assertThat(cursor.read()).isNull();
+
+    // The next walk starts over.
+    assertThat(Reconciler.walk(PROJECTS, cursor, 3, reconciled::add)).isTrue();
+    assertThat(reconciled).containsExactly("a", "b", "c", "a", "b", "c").inOrder();
+  }
+
+  @Test
+  public void testIdleTimeRespectsMaxLoad() {
+    assertThat(Reconciler.idleTimeAfter(50, 5)).isEqualTo(950);
+    assertThat(Reconciler.idleTimeAfter(50, 50)).isEqualTo(50);
+    assertThat(Reconciler.idleTimeAfter(50, 100)).isEqualTo(1);
+    assertThat(Reconciler.idleTimeAfter(0, 5)).isEqualTo(1);
+  }
+
+  @Test
+  public void testFirstRunIsShortlyAfterStart() {
+    assertThat(Reconciler.firstRunDelay(TimeUnit.HOURS.toMillis(1)))
+        .isEqualTo(TimeUnit.SECONDS.toMillis(10));
+    assertThat(Reconciler.firstRunDelay(1000)).isEqualTo(1000);
+  }
+
+  @Test
+  public void testProjectNameIsQuotedInQuery() {
+    assertThat(Reconciler.submittableChangesQuery("plain", ImmutableList.of()))
+        .isEqualTo("status:open is:submittable project:\"plain\"");
+    assertThat(Reconciler.submittableChangesQuery("a b OR project:\"c\\", ImmutableList.of()))
+        .isEqualTo("status:open is:submittable project:\"a b OR project:\\\"c\\\\\"");
+  }
+
+  @Test
+  public void testBranchesLeasedElsewhereAreLeftOutOfQuery() {
+    assertThat(
+            Reconciler.submittableChangesQuery(
+                "p", ImmutableList.of("refs/heads/master", "refs/heads/stable")))
+        .isEqualTo(
+            "status:open is:submittable project:\"p\""
+                + " -branch:\"refs/heads/master\" -branch:\"refs/heads/stable\"");
+  }
+}
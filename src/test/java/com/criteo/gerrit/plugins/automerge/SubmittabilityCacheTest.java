@@ -0,0 +1,141 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.criteo.gerrit.plugins.automerge;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allow;
+import static com.google.gerrit.entities.Permission.READ;
+
+import com.google.common.cache.CacheStats;
+import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.acceptance.config.GerritConfigs;
+import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.extensions.api.changes.ReviewInput;
+import com.google.inject.Inject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The plugin does not handle the branch of the changes, so that only the lookups of the test go
+ * through the cache.
+ */
+@NoHttpd
+@TestPlugin(
+    name = "autosubmitter",
+    sysModule = "com.criteo.gerrit.plugins.automerge.AutomergeModule")
+@GerritConfigs({
+  @GerritConfig(name = "automerge.botEmail", value = "admin@example.com"),
+  @GerritConfig(name = "automerge.excludeBranch", value = "refs/heads/master")
+})
+public class SubmittabilityCacheTest extends LightweightPluginDaemonTest {
+  @Inject private ProjectOperations projectOperations;
+
+  private AtomicityHelper atomicityHelper;
+  private SubmittabilityCache cache;
+
+  @Before
+  public void setup() {
+    atomicityHelper = plugin.getSysInjector().getInstance(AtomicityHelper.class);
+    cache = plugin.getSysInjector().getInstance(SubmittabilityCache.class);
+  }
+
+  @Test
+  public void sameStateIsServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    assertThat(isSubmittable(change)).isFalse();
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isFalse();
+    CacheStats delta = cache.stats().minus(before);
+    assertThat(delta.hitCount()).isEqualTo(1);
+    assertThat(delta.missCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void voteIsNotServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    assertThat(isSubmittable(change)).isFalse();
+    gApi.changes().id(change.getChangeId()).current().review(ReviewInput.approve());
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isTrue();
+    assertThat(cache.stats().minus(before).missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void newPatchSetIsNotServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    gApi.changes().id(change.getChangeId()).current().review(ReviewInput.approve());
+    assertThat(isSubmittable(change)).isTrue();
+    amendChange(change.getChangeId()).assertOkStatus();
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isFalse();
+    assertThat(cache.stats().minus(before).missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void closedChangeIsNeverServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    gApi.changes().id(change.getChangeId()).current().review(ReviewInput.approve());
+    assertThat(isSubmittable(change)).isTrue();
+    gApi.changes().id(change.getChangeId()).current().submit();
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isFalse();
+    CacheStats delta = cache.stats().minus(before);
+    assertThat(delta.hitCount()).isEqualTo(0);
+    assertThat(delta.missCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void projectConfigUpdateIsNotServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    assertThat(isSubmittable(change)).isFalse();
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(READ).ref("refs/heads/*").group(AccountGroup.uuid("global:Registered-Users")))
+        .update();
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isFalse();
+    assertThat(cache.stats().minus(before).missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void parentProjectConfigUpdateIsNotServedFromCache() throws Exception {
+    PushOneCommit.Result change = createChange();
+    assertThat(isSubmittable(change)).isFalse();
+    projectOperations
+        .allProjectsForUpdate()
+        .add(allow(READ).ref("refs/heads/*").group(AccountGroup.uuid("global:Registered-Users")))
+        .update();
+
+    CacheStats before = cache.stats();
+    assertThat(isSubmittable(change)).isFalse();
+    assertThat(cache.stats().minus(before).missCount()).isEqualTo(1);
+  }
+
+  private boolean isSubmittable(PushOneCommit.Result change) {
+    return atomicityHelper.isSubmittable(
+        project.get(), change.getChange().getId().get(), EvaluationTrace.disabled());
+  }
+}